@@ -1,23 +1,43 @@
 package com.sunteorum.kiku.cache;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.Build;
+import android.util.DisplayMetrics;
 
 /**
  * 图像缓存类
@@ -25,138 +45,1058 @@ import android.net.Uri;
  *
  */
 public class BitmapCache implements Cacheable<Bitmap> {
-	private final static int MAX_IMAGE_SIZE = 2048;
-	private static int HARD_CACHE_CAPACITY = 6; //缓存数量
-	private long size; //当前内存占用
-	private long maxSize = (Runtime.getRuntime().maxMemory() / 4); //最大内存占用
-	private int hits; //从缓存中取得数据的次数
+	private final static int TEMP_STORAGE_SIZE = 1024 * 16; //解码时使用的临时缓冲大小
+	private final static int STREAM_BUFFER_SIZE = 1024 * 64; //输入流缓冲的初始大小
+	private final static int MARK_LIMIT = 1024 * 1024 * 4; //读取尺寸后可以重新读取的最大长度
+	private final static int FAILURE_SWEEP_SIZE = 256; //失败记录超过该数量时清理已过期的记录
+	private final static DecodeOptions DEFAULT_DECODE_OPTIONS = new DecodeOptions(); //不可修改
+	private final static int IO_THREADS = 3; //异步加载的读取线程数
+	private final static int DECODE_THREADS = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors())); //异步加载的解码线程数
+	private final static int LOADER_KEEP_ALIVE = 1000 * 30; //加载线程空闲多久后结束 (毫秒)
 	
-	private final Map<String, Bitmap> sHardBitmapCache = Collections.synchronizedMap(
-		new LinkedHashMap<String, Bitmap>(HARD_CACHE_CAPACITY / 2, 0.75f, true) {
+	/**
+	 * 图像加载器，由 {@link BitmapCache#get(String, Loader)} 在缓存中没有图像时调用
+	 */
+	public interface Loader {
+		/**
+		 * 加载图像
+		 * @param key
+		 * @return 图像，不存在时返回 null
+		 * @throws Exception 加载失败时
+		 */
+		public Bitmap load(String key) throws Exception;
+	}
+	
+	/**
+	 * 异步加载的结果通知，在加载线程中调用 (更新界面时需要调用者切换到主线程)
+	 */
+	public interface Callback {
+		/**
+		 * 图像已加载并放入缓存
+		 * @param key
+		 * @param bitmap
+		 */
+		public void onLoaded(String key, Bitmap bitmap);
 		
-			private static final long serialVersionUID = 1L;
-
-			@Override
-			protected boolean removeEldestEntry(LinkedHashMap.Entry<String, Bitmap> eldest) {
-				if (size() > HARD_CACHE_CAPACITY) {
-					sSoftBitmapCache.put(eldest.getKey(), new SoftReference<Bitmap>(eldest.getValue()));
-					return true;
-				} else {
-					return false;
-				}
-			}
+		/**
+		 * 加载失败
+		 * @param key
+		 * @param cause 失败的原因，为 null 时图像不存在或无法解码
+		 */
+		public void onFailed(String key, Throwable cause);
+	}
+	
+	/**
+	 * 异步加载的读取阶段，取得图像数据所在的本地文件，在读取线程中调用
+	 */
+	public interface Fetcher {
+		/**
+		 * 取得图像文件。文件位于 {@link BitmapCache#getSpoolDirectory()} 中时解码后被删除。
+		 * 读取时间较长时应通过 {@link BitmapLoadRequest#isActive()} 检查请求是否仍需要。
+		 * @param request
+		 * @return 本地文件，不存在或请求已不再需要时返回 null
+		 * @throws Exception 读取失败时
+		 */
+		public File fetch(BitmapLoadRequest request) throws Exception;
+	}
+	
+	/**
+	 * 图像因超出缓存限制被淘汰时的通知 (被替换或删除时不通知)，在淘汰图像的线程中调用。
+	 * 设置了复用池时，图像在通知返回后即可能被复用，需要在通知之外继续使用时应在通知中调用 {@link BitmapCache#retain(Bitmap)}。
+	 */
+	public interface EvictionListener {
+		/**
+		 * @param key 图像的键，可能为尺寸版本的键 ({@link #isVariantKey(String)})
+		 * @param bitmap
+		 */
+		public void onEvicted(String key, Bitmap bitmap);
+	}
+	
+	/**
+	 * 加载失败的记录
+	 */
+	private static final class Failure {
+		final Throwable cause; //为 null 时加载结果为不存在
+		final long expire;
 		
-	});
-
-	private final static ConcurrentHashMap<String, SoftReference<Bitmap>>
-			sSoftBitmapCache = new ConcurrentHashMap<String, SoftReference<Bitmap>>(HARD_CACHE_CAPACITY / 2);
+		Failure(Throwable cause, long expire) {
+			this.cause = cause;
+			this.expire = expire;
+		}
+	}
+	private final int maxCount; //最大缓存数量，小于 0 时只按内存占用限制
+	private final AtomicInteger hits = new AtomicInteger(); //从缓存中取得数据的次数
+	
+	//读取不加锁，访问顺序批量调整；被淘汰的图像转入淘汰缓存 (可以复用的图像放入复用池)
+	private final ConcurrentLruCache<String, Bitmap> sHardBitmapCache;
+	//被淘汰的图像，以软引用保存并按内存占用限制，再次访问时放回上面的缓存
+	private final VictimCache<String, Bitmap> victims;
+	
+	private volatile BitmapPool pool; //图像复用池，为 null 时不复用
+	private volatile EvictionListener evictionListener;
+	//以下由 pins 同步：通过 acquire 或 retain 标记、尚未 release 的图像及其次数，以及其间已被移出缓存的图像
+	private final Map<Bitmap, Integer> pins = new IdentityHashMap<Bitmap, Integer>();
+	private final Set<Bitmap> releasedWhilePinned = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+	//通过 putAndAcquire 放入、从未以其他方式交给调用者的图像，只有这些图像可以放入复用池。
+	//修改时持有 pins 的锁，读取不加锁 (Bitmap 未重写 equals，按对象比较)
+	private final Set<Bitmap> poolable = Collections.newSetFromMap(new ConcurrentHashMap<Bitmap, Boolean>());
+	
+	private final ConcurrentHashMap<String, FutureTask<Bitmap>> loading = new ConcurrentHashMap<String, FutureTask<Bitmap>>(); //正在加载的图像
+	private final ConcurrentHashMap<String, Failure> failures = new ConcurrentHashMap<String, Failure>(); //最近加载失败的键
+	private volatile long failureTime = 1000 * 10; //加载失败后不再重试的时间 (毫秒)
+	
+	//原键 → 缓存中该图像各尺寸版本的键，用于从较大的版本缩小得到较小的版本
+	private final ConcurrentHashMap<String, Set<String>> variants = new ConcurrentHashMap<String, Set<String>>();
+	//尺寸版本的键 → 原键。原键可以包含任意字符，因此不从版本的键中解析
+	private final ConcurrentHashMap<String, String> variantBases = new ConcurrentHashMap<String, String>();
+	
+	private volatile DecodeOptions decodeOptions; //未指定解码选项时使用，为 null 时使用默认选项
+	
+	private volatile Fetcher fetcher; //为 null 时按本地路径或网址读取
+	private volatile File spoolDirectory = new File(System.getProperty("java.io.tmpdir"), "kiku-bitmap"); //下载的临时文件目录
+	private ThreadPoolExecutor ioExecutor; //以下两个线程池在首次异步加载时创建，按请求的优先级排队
+	private ThreadPoolExecutor decodeExecutor;
 
+	/**
+	 * 构造方法，只按图像占用的内存大小 ({@link #sizeOf(Bitmap)}) 限制缓存，
+	 * 默认最大占用为可用内存的 1/4，可通过 {@link #setMaxSize(long)} 修改。
+	 */
 	public BitmapCache() {
-		super();
+		this(-1);
 	}
 	
 	/**
 	 * 构造方法
-	 * @param maxCapacity 最大缓存数量
+	 * @param maxCapacity 最大缓存数量 (只对本实例有效)
+	 * @deprecated 按数量限制会淘汰很小的图像，使用 {@link #BitmapCache()} 和 {@link #setMaxSize(long)} 按内存占用限制
 	 */
+	@Deprecated
 	public BitmapCache(int maxCapacity) {
 		super();
-		if (maxCapacity > 0)
-			HARD_CACHE_CAPACITY = maxCapacity;
+		this.maxCount = maxCapacity > 0 ? maxCapacity : -1;
+		ConcurrentLruCache.Weigher<Bitmap> weigher = new ConcurrentLruCache.Weigher<Bitmap>() {
+
+			@Override
+			public int weigh(Bitmap value) {
+				return sizeOf(value);
+			}
+			
+		};
+		victims = new VictimCache<String, Bitmap>(Runtime.getRuntime().maxMemory() / 16, weigher,
+				new VictimCache.DropListener<String>() {
+
+					@Override
+					public void onDropped(String key) {
+						//尺寸版本在淘汰缓存中时保留其记录，被丢弃后删除 (已放回主缓存的除外)
+						if (!sHardBitmapCache.containsKey(key)) forgetVariant(key);
+					}
+					
+				});
+		sHardBitmapCache = new ConcurrentLruCache<String, Bitmap>(
+				Runtime.getRuntime().maxMemory() / 4, maxCount, weigher,
+				new ConcurrentLruCache.RemovalListener<String, Bitmap>() {
+
+					@Override
+					public void onRemoval(String key, Bitmap value, Bitmap replacement, boolean evicted) {
+						EvictionListener listener = evictionListener;
+						if (evicted && listener != null) listener.onEvicted(key, value);
+						if (replacement == value) return; //以同一个图像替换，仍在缓存中
+						boolean kept = recycle(key, value, evicted, replacement == null && !evicted);
+						if (replacement == null && !kept) forgetVariant(key); //被替换时键仍在缓存中
+					}
+					
+				});
 	}
 
+	/**
+	 * 设置图像复用池，应在使用缓存前设置。只有通过 {@link #putAndAcquire(String, Object)} 或
+	 * {@link #acquire(String, Loader)} 放入、从未以其他方式交给调用者的图像，在被淘汰或被其他图像替换后
+	 * 放入复用池供解码时复用，仍在使用中的要等到全部
+	 * {@link #release(Bitmap)} 后放入；通过 get、put、异步加载等方法交给调用者的图像可能仍在使用 (如正在显示)，
+	 * 不会被复用，被淘汰时与未设置复用池时一样转入软引用缓存。(同一个图像不可对应多个键)
+	 * @param pool 为 null 时不复用
+	 */
+	public void setBitmapPool(BitmapPool pool) {
+		this.pool = pool;
+	}
+	
+	public BitmapPool getBitmapPool() {
+		return pool;
+	}
+	
+	/**
+	 * 设置图像被淘汰时的通知，如将图像转存到磁盘缓存
+	 * @param listener 为 null 时不通知
+	 */
+	public void setEvictionListener(EvictionListener listener) {
+		this.evictionListener = listener;
+	}
+	
+	/**
+	 * 取得缓存图像并标记为使用中，使用完毕后必须调用 {@link #release(Bitmap)}。
+	 * 不会取消图像的复用资格，结束使用后不可再访问该图像。
+	 * @param key
+	 * @return 不存在时返回 null
+	 */
+	public Bitmap acquire(String key) {
+		if (key == null) return null;
+		Bitmap bitmap = sHardBitmapCache.get(key);
+		if (bitmap == null) return null;
+		synchronized (pins) {
+			//标记前可能已被移出并放入复用池
+			if (sHardBitmapCache.peek(key) != bitmap) return null;
+			pin(bitmap);
+		}
+		hits.incrementAndGet();
+		return bitmap;
+	}
+	
+	/**
+	 * 将图像标记为使用中，如在淘汰通知中保留被淘汰的图像，使用完毕后必须调用 {@link #release(Bitmap)}
+	 * @param bitmap
+	 */
+	public void retain(Bitmap bitmap) {
+		if (bitmap == null) return;
+		synchronized (pins) {
+			pin(bitmap);
+		}
+	}
+	
+	/**
+	 * 增加图像的使用次数 (持有 pins 的锁时调用)
+	 */
+	private void pin(Bitmap bitmap) {
+		Integer count = pins.get(bitmap);
+		pins.put(bitmap, count == null ? 1 : count + 1);
+	}
+	
+	/**
+	 * 结束使用通过 {@link #acquire(String)} 或 {@link #retain(Bitmap)} 标记的图像。该图像已被移出缓存且不再使用时放入复用池。
+	 * @param bitmap
+	 */
+	public void release(Bitmap bitmap) {
+		if (bitmap == null) return;
+		synchronized (pins) {
+			Integer count = pins.get(bitmap);
+			if (count == null) return;
+			if (count > 1) {
+				pins.put(bitmap, count - 1);
+				return;
+			}
+			pins.remove(bitmap);
+			//使用期间可能已交给其他调用者
+			if (!releasedWhilePinned.remove(bitmap) || !poolable.remove(bitmap)) return;
+		}
+		BitmapPool pool = this.pool;
+		if (pool != null) pool.put(bitmap);
+	}
+	
+	/**
+	 * 处理移出缓存的图像：可以复用的图像放入复用池 (仍在使用中时等到 release 后放入)；
+	 * 其他图像可能仍被调用者使用，被淘汰时转入淘汰缓存，被替换或删除时不再保留
+	 * @param key
+	 * @param bitmap
+	 * @param evicted 是否被淘汰
+	 * @param removed 是否被删除 (图像将返回给调用者)
+	 * @return 是否转入了淘汰缓存
+	 */
+	private boolean recycle(String key, Bitmap bitmap, boolean evicted, boolean removed) {
+		BitmapPool pool = this.pool;
+		boolean reusable = false;
+		synchronized (pins) {
+			if (removed || pool == null) poolable.remove(bitmap);
+			if (poolable.contains(bitmap)) {
+				if (pins.containsKey(bitmap)) {
+					releasedWhilePinned.add(bitmap);
+					return false;
+				}
+				poolable.remove(bitmap);
+				reusable = true;
+			}
+		}
+		if (reusable) {
+			pool.put(bitmap);
+			return false;
+		}
+		if (!evicted) return false;
+		victims.put(key, bitmap);
+		return true;
+	}
+	
+	/**
+	 * 将缓存中的图像交给不会 release 的调用者前取消其复用资格
+	 * @param key 图像所在的键
+	 * @param bitmap
+	 * @return 图像已被移出缓存且可能已放入复用池时返回 false，不可交给调用者
+	 */
+	private boolean handOut(String key, Bitmap bitmap) {
+		if (pool == null) return true; //未设置复用池时不会加入可复用的图像
+		//先检查复用资格再确认仍在缓存中：放入复用池前已被移出缓存
+		if (!poolable.contains(bitmap) && sHardBitmapCache.peek(key) == bitmap) return true;
+		synchronized (pins) {
+			if (sHardBitmapCache.peek(key) != bitmap && !pins.containsKey(bitmap)) return false;
+			poolable.remove(bitmap);
+			return true;
+		}
+	}
+	
+	/**
+	 * 放入图像并标记为使用中，使用完毕后必须调用 {@link #release(Bitmap)}。设置了复用池时，由此放入、
+	 * 只通过 {@link #acquire(String)} 使用的图像在被淘汰或替换并结束使用后可以放入复用池。
+	 * @param key
+	 * @param value 图像，或解码的文件、路径或网址 (使用 {@link #setDecodeOptions(DecodeOptions)} 设置的选项)
+	 * @return 放入的图像，解码失败时返回 null
+	 */
+	public Bitmap putAndAcquire(String key, Object value) {
+		if (key == null || value == null) return null;
+		if (!(value instanceof Bitmap)) value = decodeSource(value, 0, 0, decodeOptions);
+		if (!(value instanceof Bitmap)) return null;
+		Bitmap bitmap = (Bitmap) value;
+		//放入缓存前标记，不会在返回前被淘汰并复用
+		synchronized (pins) {
+			pin(bitmap);
+			if (pool != null) poolable.add(bitmap);
+		}
+		put(key, bitmap);
+		return bitmap;
+	}
+	
 	@Override
 	public boolean contains(String key) {
-		return (sHardBitmapCache.containsKey(key) || sSoftBitmapCache.containsKey(key));
+		return (sHardBitmapCache.containsKey(key) || victims.containsKey(key));
 	}
 
 	@Override
 	public void put(String key, Object value) {
 		if (value == null) return;
-		Bitmap previous = null;
-		if (!(value instanceof Bitmap)) {
-			File f = null;
-			String s = null;
-			if (value instanceof File) {
-				f = (File) value;
-				s = f.getAbsolutePath();
-			} else {
-				s = value.toString();
-				f = new File(s);
-				if (!f.exists()) f = new File(Uri.parse(s).getPath());
-			}
-			try {
-				if (!f.exists())
-					value = decodeBitmapFromStream(new java.net.URL(s).openStream());
-				else
-					value = decodeBitmapFromFile(f);
-			} catch (Exception e) {
-				e.printStackTrace();
-			} catch (OutOfMemoryError e) {
-				e.printStackTrace();
-			}
+		if (!(value instanceof Bitmap)) value = decodeSource(value, 0, 0, decodeOptions);
+		if (value instanceof Bitmap) {
+			sHardBitmapCache.put(key, (Bitmap) value);
+			failures.remove(key);
 		}
-		if (value == null) return;
+	}
+	
+	/**
+	 * 按指定尺寸放入图像的一个版本，键为 {@link #variantKey(String, int, int, Bitmap.Config)}
+	 * @param key 原键
+	 * @param value 图像，或按指定尺寸解码的文件、路径或网址 (使用 {@link #setDecodeOptions(DecodeOptions)} 设置的选项)
+	 * @param reqWidth
+	 * @param reqHeight
+	 * @return 放入的图像，解码失败时返回 null
+	 */
+	public Bitmap put(String key, Object value, int reqWidth, int reqHeight) {
 		if (value instanceof Bitmap) {
-			synchronized (sHardBitmapCache) {
-				previous = sHardBitmapCache.put(key, (Bitmap) value);
-				size += sizeOf((Bitmap) value);
-				checkSize();
+			Bitmap.Config config = ((Bitmap) value).getConfig();
+			return put(key, value, reqWidth, reqHeight, config == null ? null : variantKey(key, reqWidth, reqHeight, config), null);
+		}
+		return put(key, value, reqWidth, reqHeight, decodeOptions);
+	}
+	
+	/**
+	 * 按指定尺寸和解码选项放入图像的一个版本，键为 {@link #variantKey(String, int, int, DecodeOptions)}
+	 * @param key 原键
+	 * @param value 图像，或按指定尺寸和选项解码的文件、路径或网址
+	 * @param reqWidth
+	 * @param reqHeight
+	 * @param options 解码选项，为 null 时使用默认选项
+	 * @return 放入的图像，解码失败时返回 null
+	 */
+	public Bitmap put(String key, Object value, int reqWidth, int reqHeight, DecodeOptions options) {
+		return put(key, value, reqWidth, reqHeight, variantKey(key, reqWidth, reqHeight, options), options);
+	}
+	
+	private Bitmap put(String key, Object value, int reqWidth, int reqHeight, String variantKey, DecodeOptions options) {
+		if (key == null || value == null) return null;
+		if (variantKey == null) variantKey = variantKey(key, reqWidth, reqHeight, options);
+		if (!(value instanceof Bitmap)) value = decodeSource(value, reqWidth, reqHeight, options);
+		if (!(value instanceof Bitmap)) return null;
+		Bitmap bitmap = (Bitmap) value;
+		putVariant(key, variantKey, bitmap);
+		failures.remove(key);
+		failures.remove(variantKey);
+		return bitmap;
+	}
+	
+	/**
+	 * 设置未指定解码选项时使用的选项 (设置后不应再修改该选项)
+	 * @param options 为 null 时使用默认选项
+	 */
+	public void setDecodeOptions(DecodeOptions options) {
+		this.decodeOptions = options;
+	}
+	
+	public DecodeOptions getDecodeOptions() {
+		return decodeOptions;
+	}
+	
+	/**
+	 * 解码文件、路径或网址
+	 * @param reqWidth 为 0 时只按最大尺寸限制
+	 * @param reqHeight 为 0 时只按最大尺寸限制
+	 * @return 解码失败时返回 null
+	 */
+	private Bitmap decodeSource(Object value, int reqWidth, int reqHeight, DecodeOptions options) {
+		if (reqWidth <= 0 || reqHeight <= 0) reqWidth = reqHeight = Integer.MAX_VALUE;
+		File f = null;
+		String s = null;
+		if (value instanceof File) {
+			f = (File) value;
+			s = f.getAbsolutePath();
+		} else {
+			s = value.toString();
+			f = new File(s);
+			if (!f.exists()) f = new File(Uri.parse(s).getPath());
+		}
+		try {
+			if (!f.exists())
+				return decodeBitmapFromStream(new java.net.URL(s).openStream(), reqWidth, reqHeight, pool, options);
+			else
+				return decodeBitmapFromFile(f, reqWidth, reqHeight, pool, options);
+		} catch (Exception e) {
+			e.printStackTrace();
+		} catch (OutOfMemoryError e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+	
+	/**
+	 * 取得图像某个尺寸版本的缓存键，格式为 <code>key#宽x高@配置</code>
+	 * @param key 原键
+	 * @param width 请求的宽度
+	 * @param height 请求的高度
+	 * @param config
+	 * @return
+	 */
+	public static String variantKey(String key, int width, int height, Bitmap.Config config) {
+		return key + "#" + width + "x" + height + "@" + (config == null ? Bitmap.Config.ARGB_8888 : config).name();
+	}
+	
+	/**
+	 * 取得图像按指定尺寸和解码选项解码的版本的缓存键，默认选项与 ARGB_8888 配置的键相同
+	 * @param key 原键
+	 * @param width 请求的宽度
+	 * @param height 请求的高度
+	 * @param options 为 null 时为默认选项
+	 * @return
+	 */
+	public static String variantKey(String key, int width, int height, DecodeOptions options) {
+		if (options == null) return variantKey(key, width, height, Bitmap.Config.ARGB_8888);
+		return key + "#" + width + "x" + height + "@" + options.getVariantName();
+	}
+	
+	private void putVariant(String key, String variantKey, Bitmap bitmap) {
+		Set<String> keys = variants.get(key);
+		if (keys == null) {
+			Set<String> newKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			keys = variants.putIfAbsent(key, newKeys);
+			if (keys == null) keys = newKeys;
+		}
+		keys.add(variantKey);
+		variantBases.put(variantKey, key);
+		sHardBitmapCache.put(variantKey, bitmap);
+	}
+	
+	/**
+	 * 判断键是否为缓存中某个尺寸版本的键 (按尺寸放入或缩小得到，尚未移出缓存)
+	 * @param key
+	 * @return
+	 */
+	public boolean isVariantKey(String key) {
+		return key != null && variantBases.containsKey(key);
+	}
+	
+	/**
+	 * 图像移出缓存后删除其版本记录
+	 * @param variantKey
+	 */
+	private void forgetVariant(String variantKey) {
+		String key = variantBases.remove(variantKey);
+		if (key == null) return;
+		Set<String> keys = variants.get(key);
+		if (keys == null || !keys.remove(variantKey)) return;
+		//与同时加入的版本竞争时可能丢失其记录，该版本仍可按完整的键取得，只是不再用于缩小
+		if (keys.isEmpty()) variants.remove(key, keys);
+	}
+	
+	/**
+	 * 取得图像的指定尺寸版本。缓存中没有该版本时，从不小于所需尺寸的其他版本 (包括按原键放入的图像) 中
+	 * 选择最小的一个缩小得到，缩小的结果也放入缓存；没有可用的版本时返回 null，需要调用者按该尺寸解码后
+	 * 通过 {@link #put(String, Object, int, int)} 放入。(使用 {@link #setDecodeOptions(DecodeOptions)} 设置的选项)
+	 * @param key 原键
+	 * @param reqWidth
+	 * @param reqHeight
+	 * @return
+	 */
+	public Bitmap get(String key, int reqWidth, int reqHeight) {
+		return get(key, reqWidth, reqHeight, decodeOptions);
+	}
+	
+	/**
+	 * 取得图像指定尺寸和配置的版本，参见 {@link #get(String, int, int)}
+	 * @param key 原键
+	 * @param reqWidth
+	 * @param reqHeight
+	 * @param config
+	 * @return
+	 */
+	public Bitmap get(String key, int reqWidth, int reqHeight, Bitmap.Config config) {
+		DecodeOptions options = new DecodeOptions();
+		if (config != null) options.setConfig(config);
+		return get(key, reqWidth, reqHeight, options);
+	}
+	
+	/**
+	 * 取得图像按指定尺寸和解码选项解码的版本，参见 {@link #get(String, int, int)}
+	 * @param key 原键
+	 * @param reqWidth
+	 * @param reqHeight
+	 * @param options 解码选项，为 null 时使用默认选项
+	 * @return
+	 */
+	public Bitmap get(String key, int reqWidth, int reqHeight, DecodeOptions options) {
+		if (key == null || reqWidth <= 0 || reqHeight <= 0) return null;
+		String variantKey = variantKey(key, reqWidth, reqHeight, options);
+		Bitmap bitmap = get(variantKey);
+		if (bitmap != null) return bitmap;
+		if (options == null) options = DEFAULT_DECODE_OPTIONS;
+		
+		//选择能覆盖所需尺寸的最小版本
+		String best = null;
+		long bestPixels = Long.MAX_VALUE;
+		List<String> candidates = new ArrayList<String>();
+		candidates.add(key);
+		Set<String> keys = variants.get(key);
+		if (keys != null) candidates.addAll(keys);
+		for (String k : candidates) {
+			Bitmap b = sHardBitmapCache.peek(k);
+			if (b == null || !options.accepts(b.getConfig()) || b.getWidth() < reqWidth || b.getHeight() < reqHeight) continue;
+			long pixels = (long) b.getWidth() * b.getHeight();
+			if (pixels < bestPixels) {
+				best = k;
+				bestPixels = pixels;
 			}
 		}
-		if (previous != null) {
-			sSoftBitmapCache.put(key, new SoftReference<Bitmap>(previous));
-			size -= sizeOf(previous);
+		if (best == null) return null;
+		
+		Bitmap source = acquire(best); //缩小期间不会被放入复用池
+		if (source == null) return null;
+		try {
+			float scale = Math.max(reqWidth / (float) source.getWidth(), reqHeight / (float) source.getHeight());
+			if (scale >= 1) return handOut(best, source) ? source : null; //尺寸已合适，同一个图像不重复放入缓存
+			int width = Math.max(1, Math.round(source.getWidth() * scale));
+			int height = Math.max(1, Math.round(source.getHeight() * scale));
+			Bitmap scaled = Bitmap.createScaledBitmap(source, width, height, true);
+			if (scaled == null || scaled == source) return source;
+			putVariant(key, variantKey, scaled);
+			return scaled;
+		} catch (OutOfMemoryError e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			release(source);
 		}
-
 	}
-
+	
 	@Override
 	public Bitmap get(String key) {
 		if (key == null) return null;
 		
-		synchronized (sHardBitmapCache) {
-			if (sHardBitmapCache.containsKey(key)) {
-				final Bitmap bitmap = sHardBitmapCache.get(key);
-				if (bitmap != null) {
-					sHardBitmapCache.remove(key);
-					sHardBitmapCache.put(key, bitmap);
-					hits++;
-					return bitmap;
+		final Bitmap cached = sHardBitmapCache.get(key);
+		if (cached != null && handOut(key, cached)) {
+			hits.incrementAndGet();
+			return cached;
+		}
+		
+		//被淘汰后再次访问，放回缓存
+		final Bitmap bitmap = victims.remove(key);
+		if (bitmap == null || bitmap.isRecycled()) return null;
+		String base = variantBases.get(key);
+		if (base != null) putVariant(base, key, bitmap);
+		else sHardBitmapCache.put(key, bitmap);
+		hits.incrementAndGet();
+		return bitmap;
+	}
+	
+	/**
+	 * 取得缓存图像，不存在时通过加载器加载并放入缓存。
+	 * <br>同一个键同时只会加载一次，其间请求该键的线程等待并取得同一个结果；
+	 * 加载失败或结果为不存在时，在 {@link #setFailureTime(long)} 指定的时间内不再重试，直接返回同样的结果。
+	 * @param key
+	 * @param loader 加载器
+	 * @return 图像，不存在或等待时被中断返回 null
+	 * @throws ExecutionException 加载失败时，原因为加载器抛出的异常
+	 */
+	public Bitmap get(String key, Loader loader) throws ExecutionException {
+		Bitmap bitmap = get(key);
+		if (bitmap != null || key == null) return bitmap;
+		bitmap = load(key, loader, false);
+		if (bitmap == null || handOut(key, bitmap)) return bitmap;
+		return get(key, loader); //已被移出缓存并可能已被复用，重新取得
+	}
+	
+	/**
+	 * 取得缓存图像并标记为使用中，不存在时通过加载器加载，参见 {@link #get(String, Loader)} 和 {@link #acquire(String)}。
+	 * 设置了复用池时，由此加载的图像在被淘汰并结束使用后可以放入复用池。
+	 * @param key
+	 * @param loader 加载器
+	 * @return 图像，使用完毕后必须调用 {@link #release(Bitmap)}；不存在或等待时被中断返回 null
+	 * @throws ExecutionException 加载失败时，原因为加载器抛出的异常
+	 */
+	public Bitmap acquire(String key, Loader loader) throws ExecutionException {
+		Bitmap bitmap = acquire(key);
+		if (bitmap != null || key == null) return bitmap;
+		return load(key, loader, true);
+	}
+	
+	/**
+	 * 通过加载器加载并放入缓存，同一个键同时只加载一次
+	 * @param pin 是否标记为使用中并作为可以复用的图像放入缓存
+	 * @return 加载的图像；pin 为 true 时已标记为使用中，结果由其他线程加载时为缓存中该键当前的图像
+	 */
+	private Bitmap load(String key, final Loader loader, final boolean pin) throws ExecutionException {
+		Failure failure = failures.get(key);
+		if (failure != null) {
+			if (failure.expire > System.currentTimeMillis()) {
+				if (failure.cause == null) return null;
+				throw new ExecutionException(failure.cause);
+			}
+			failures.remove(key, failure);
+		}
+		
+		FutureTask<Bitmap> task = loading.get(key);
+		boolean owner = false;
+		if (task == null) {
+			final String k = key;
+			final Object[] self = new Object[1];
+			FutureTask<Bitmap> newTask = new FutureTask<Bitmap>(new Callable<Bitmap>() {
+
+				@Override
+				public Bitmap call() throws Exception {
+					try {
+						Bitmap bitmap = loader.load(k);
+						if (bitmap != null) {
+							if (pin) putAndAcquire(k, bitmap);
+							else put(k, bitmap);
+						}
+						else addFailure(k, null);
+						return bitmap;
+					} catch (Exception e) {
+						addFailure(k, e);
+						throw e;
+					} finally {
+						//结果已放入缓存或失败记录后再移除，之后的请求不会重复加载
+						loading.remove(k, self[0]);
+					}
 				}
+				
+			});
+			self[0] = newTask;
+			task = loading.putIfAbsent(key, newTask);
+			if (task == null) {
+				task = newTask;
+				owner = true;
+				task.run();
+			}
+		}
+		
+		Bitmap bitmap;
+		try {
+			bitmap = task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		if (!pin || bitmap == null || owner) return bitmap;
+		//由其他线程加载的结果需要重新标记，期间已被移出缓存时重新取得
+		Bitmap acquired = acquire(key);
+		return acquired != null ? acquired : acquire(key, loader);
+	}
+	
+	private void addFailure(String key, Throwable cause) {
+		long now = System.currentTimeMillis();
+		if (failures.size() >= FAILURE_SWEEP_SIZE) {
+			for (Map.Entry<String, Failure> entry : failures.entrySet()) {
+				if (entry.getValue().expire <= now) failures.remove(entry.getKey(), entry.getValue());
+			}
+		}
+		failures.put(key, new Failure(cause, now + failureTime));
+	}
+	
+	/**
+	 * 设置 {@link #get(String, Loader)} 加载失败后不再重试的时间
+	 * @param millis 毫秒，0 为总是重试
+	 */
+	public void setFailureTime(long millis) {
+		this.failureTime = millis;
+		if (millis <= 0) failures.clear();
+	}
+	
+	/**
+	 * 异步加载图像，缓存中已有时立即回调。
+	 * <br>加载分为读取和解码两个阶段，各自在线程数有限的线程池中按优先级排队，
+	 * 可以通过返回的请求调整优先级 (如滚动后将可见的图像改为 {@link BitmapLoadRequest#PRIORITY_VISIBLE}) 或取消；
+	 * 请求者被回收后 (如所在的视图已被销毁) 剩余的阶段不再执行。加载失败的记录与 {@link #get(String, Loader)} 共用。
+	 * @param key 本地路径或网址，设置了 {@link #setFetcher(Fetcher)} 时由其解释
+	 * @param priority 优先级，如 {@link BitmapLoadRequest#PRIORITY_NORMAL}
+	 * @param requester 请求者，只保留弱引用，为 null 时不跟随
+	 * @param callback 结果通知，可为 null
+	 * @return 加载请求
+	 */
+	public BitmapLoadRequest loadAsync(String key, int priority, Object requester, Callback callback) {
+		return loadAsync(key, 0, 0, null, priority, requester, callback);
+	}
+	
+	/**
+	 * 异步加载图像的指定尺寸版本，可以由缓存中较大的版本缩小得到，参见 {@link #get(String, int, int)}
+	 * 和 {@link #loadAsync(String, int, Object, Callback)}
+	 * @param key 本地路径或网址
+	 * @param reqWidth 所需宽度，为 0 时按原键加载
+	 * @param reqHeight 所需高度，为 0 时按原键加载
+	 * @param priority 优先级
+	 * @param requester 请求者，只保留弱引用，为 null 时不跟随
+	 * @param callback 结果通知，可为 null
+	 * @return 加载请求
+	 */
+	public BitmapLoadRequest loadAsync(String key, int reqWidth, int reqHeight, int priority, Object requester, Callback callback) {
+		return loadAsync(key, reqWidth, reqHeight, null, priority, requester, callback);
+	}
+	
+	/**
+	 * 按指定的解码选项异步加载图像的指定尺寸版本，参见 {@link #loadAsync(String, int, int, int, Object, Callback)}
+	 * @param key 本地路径或网址
+	 * @param reqWidth 所需宽度，为 0 时按原键加载
+	 * @param reqHeight 所需高度，为 0 时按原键加载
+	 * @param options 解码选项，为 null 时使用 {@link #setDecodeOptions(DecodeOptions)} 设置的选项
+	 * @param priority 优先级
+	 * @param requester 请求者，只保留弱引用，为 null 时不跟随
+	 * @param callback 结果通知，可为 null
+	 * @return 加载请求
+	 */
+	public BitmapLoadRequest loadAsync(String key, int reqWidth, int reqHeight, DecodeOptions options,
+			int priority, Object requester, Callback callback) {
+		if (key == null) throw new NullPointerException("key == null");
+		if (options == null) options = decodeOptions;
+		BitmapLoadRequest request = new BitmapLoadRequest(this, key, reqWidth, reqHeight, options, priority, requester, callback);
+		
+		Bitmap bitmap = getCached(request);
+		if (bitmap != null) {
+			if (request.advance(BitmapLoadRequest.STATE_FETCH_QUEUED, BitmapLoadRequest.STATE_DONE) && callback != null)
+				callback.onLoaded(key, bitmap);
+			return request;
+		}
+		Failure failure = failures.get(failureKey(request));
+		if (failure != null && failure.expire > System.currentTimeMillis()) {
+			if (request.advance(BitmapLoadRequest.STATE_FETCH_QUEUED, BitmapLoadRequest.STATE_DONE) && callback != null)
+				callback.onFailed(key, failure.cause);
+			return request;
+		}
+		
+		getLoaderExecutor(false).execute(request);
+		return request;
+	}
+	
+	/**
+	 * 设置异步加载的读取方式
+	 * @param fetcher 为 null 时按本地路径或网址读取
+	 */
+	public void setFetcher(Fetcher fetcher) {
+		this.fetcher = fetcher;
+	}
+	
+	/**
+	 * 设置下载图像时使用的临时文件目录 (其中的文件解码后被删除)，默认为 java.io.tmpdir 下的 kiku-bitmap
+	 * @param dir
+	 */
+	public void setSpoolDirectory(File dir) {
+		if (dir == null) throw new NullPointerException("dir == null");
+		this.spoolDirectory = dir;
+	}
+	
+	public File getSpoolDirectory() {
+		return spoolDirectory;
+	}
+	
+	/**
+	 * 取得异步加载的线程池，首次调用时创建
+	 * @param decode 是否为解码线程池，否则为读取线程池
+	 * @return
+	 */
+	private synchronized ThreadPoolExecutor getLoaderExecutor(boolean decode) {
+		if (decode) {
+			if (decodeExecutor == null) decodeExecutor = newLoaderExecutor(DECODE_THREADS, "BitmapCache-decode");
+			return decodeExecutor;
+		}
+		if (ioExecutor == null) ioExecutor = newLoaderExecutor(IO_THREADS, "BitmapCache-io");
+		return ioExecutor;
+	}
+	
+	private static ThreadPoolExecutor newLoaderExecutor(int threads, final String name) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, LOADER_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(final Runnable r) {
+						Thread t = new Thread(new Runnable() {
+
+							@Override
+							public void run() {
+								android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+								r.run();
+							}
+							
+						}, name + "-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+					
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+	
+	/**
+	 * 将排队中的请求按新的优先级重新排队 (由 {@link BitmapLoadRequest#setPriority(int)} 调用)
+	 */
+	void reprioritize(BitmapLoadRequest request, int priority) {
+		//优先级是队列的排序依据，只能在移出队列后修改；不在队列中 (正在执行或在两个阶段之间) 的请求保持原优先级
+		for (ThreadPoolExecutor executor : new ThreadPoolExecutor[] { ioExecutor(), decodeExecutor() }) {
+			if (executor != null && executor.remove(request)) {
+				request.updatePriority(priority);
+				executor.execute(request);
+				return;
 			}
 		}
+	}
+	
+	/**
+	 * 将已取消的请求移出队列 (由 {@link BitmapLoadRequest#cancel()} 调用)
+	 */
+	void dequeue(BitmapLoadRequest request) {
+		ThreadPoolExecutor executor = ioExecutor();
+		if (executor != null) executor.remove(request);
+		executor = decodeExecutor();
+		if (executor != null && executor.remove(request)) request.deleteTemporaryFile();
+	}
+	
+	private synchronized ThreadPoolExecutor ioExecutor() {
+		return ioExecutor;
+	}
+	
+	private synchronized ThreadPoolExecutor decodeExecutor() {
+		return decodeExecutor;
+	}
+	
+	/**
+	 * 读取阶段，在读取线程中执行，完成后转入解码线程池
+	 */
+	void fetch(BitmapLoadRequest request) {
+		if (!request.advance(BitmapLoadRequest.STATE_FETCH_QUEUED, BitmapLoadRequest.STATE_FETCHING)) return;
+		if (request.isAbandoned()) {
+			request.cancel();
+			return;
+		}
+		
+		String key = request.getKey();
+		Bitmap bitmap = getCached(request); //排队期间可能已被其他请求加载
+		if (bitmap != null) {
+			complete(request, bitmap, BitmapLoadRequest.STATE_FETCHING, null);
+			return;
+		}
+		
+		File file = null;
+		Throwable error = null;
+		try {
+			Fetcher fetcher = this.fetcher;
+			file = fetcher != null ? fetcher.fetch(request) : fetchDefault(request);
+		} catch (Exception e) {
+			error = e;
+		}
+		if (file != null) {
+			File parent = file.getAbsoluteFile().getParentFile();
+			request.file = file;
+			request.temporary = parent != null && parent.equals(spoolDirectory.getAbsoluteFile());
+		}
 		
-		if (sSoftBitmapCache.containsKey(key)) {
-			SoftReference<Bitmap> bitmapReference = sSoftBitmapCache.get(key);
-			if (bitmapReference != null) {
-				final Bitmap bitmap = bitmapReference.get();
-				if (bitmap != null) {
-					return bitmap;
-				} else {
-					sSoftBitmapCache.remove(key);
+		if (file == null || !file.exists()) {
+			request.deleteTemporaryFile();
+			if (!request.isActive()) request.cancel(); //读取因请求不再需要而中止
+			else complete(request, null, BitmapLoadRequest.STATE_FETCHING, error);
+			return;
+		}
+		if (!request.advance(BitmapLoadRequest.STATE_FETCHING, BitmapLoadRequest.STATE_DECODE_QUEUED)) {
+			request.deleteTemporaryFile();
+			return;
+		}
+		getLoaderExecutor(true).execute(request);
+	}
+	
+	/**
+	 * 解码阶段，在解码线程中执行
+	 */
+	void decode(BitmapLoadRequest request) {
+		if (!request.advance(BitmapLoadRequest.STATE_DECODE_QUEUED, BitmapLoadRequest.STATE_DECODING)) {
+			request.deleteTemporaryFile();
+			return;
+		}
+		try {
+			if (request.isAbandoned()) {
+				request.cancel();
+				return;
+			}
+			Bitmap bitmap = getCached(request);
+			if (bitmap == null) {
+				if (request.getWidth() > 0 && request.getHeight() > 0)
+					bitmap = put(request.getKey(), request.file, request.getWidth(), request.getHeight(), request.getOptions());
+				else {
+					bitmap = decodeSource(request.file, 0, 0, request.getOptions());
+					put(request.getKey(), bitmap);
 				}
 			}
+			complete(request, bitmap, BitmapLoadRequest.STATE_DECODING, null);
+		} catch (OutOfMemoryError e) {
+			complete(request, null, BitmapLoadRequest.STATE_DECODING, e);
+		} finally {
+			request.deleteTemporaryFile();
 		}
+	}
+	
+	private Bitmap getCached(BitmapLoadRequest request) {
+		if (request.getWidth() > 0 && request.getHeight() > 0)
+			return get(request.getKey(), request.getWidth(), request.getHeight(), request.getOptions());
+		return get(request.getKey());
+	}
+	
+	/**
+	 * 请求失败时记录的键：指定尺寸的请求记录为所解码的版本，不影响原图和其他尺寸的加载
+	 */
+	private static String failureKey(BitmapLoadRequest request) {
+		if (request.getWidth() > 0 && request.getHeight() > 0)
+			return variantKey(request.getKey(), request.getWidth(), request.getHeight(), request.getOptions());
+		return request.getKey();
+	}
+	
+	private void complete(BitmapLoadRequest request, Bitmap bitmap, int from, Throwable error) {
+		if (bitmap == null) addFailure(failureKey(request), error);
+		//已取消的请求不再回调，已加载的图像仍保留在缓存中
+		if (!request.advance(from, BitmapLoadRequest.STATE_DONE)) return;
+		Callback callback = request.getCallback();
+		if (callback == null) return;
+		if (bitmap != null) callback.onLoaded(request.getKey(), bitmap);
+		else callback.onFailed(request.getKey(), error);
+	}
+	
+	/**
+	 * 默认的读取方式：本地文件直接返回，网址下载到临时文件目录
+	 */
+	private File fetchDefault(BitmapLoadRequest request) throws IOException {
+		String s = request.getKey();
+		File f = new File(s);
+		if (!f.exists()) f = new File(Uri.parse(s).getPath());
+		if (f.exists()) return f;
 		
-		return null;
+		File dir = spoolDirectory;
+		if (!dir.exists()) dir.mkdirs();
+		File tmp = File.createTempFile("bitmap", ".tmp", dir);
+		InputStream is = null;
+		OutputStream os = null;
+		byte[] buffer = ByteArrayPool.get(STREAM_BUFFER_SIZE);
+		boolean done = false;
+		try {
+			is = new java.net.URL(s).openStream();
+			os = new FileOutputStream(tmp);
+			int len;
+			while ((len = is.read(buffer)) != -1) {
+				if (!request.isActive()) return null; //请求已不再需要，中止下载
+				os.write(buffer, 0, len);
+			}
+			os.flush();
+			done = true;
+			return tmp;
+		} finally {
+			ByteArrayPool.put(buffer);
+			closeStream(is);
+			closeStream(os);
+			if (!done) tmp.delete();
+		}
 	}
 
+	/**
+	 * 删除缓存图像及其各尺寸版本
+	 */
 	@Override
 	public Bitmap remove(String key) {
 		if (key == null) return null;
-
-		Bitmap previous;
-		synchronized (sHardBitmapCache) {
-			previous = sHardBitmapCache.remove(key);
+		//版本记录包括淘汰缓存中的版本，不必遍历淘汰缓存
+		Set<String> keys = variants.remove(key);
+		if (keys != null) {
+			for (String k : keys) {
+				sHardBitmapCache.remove(k);
+				victims.remove(k);
+				variantBases.remove(k);
+			}
 		}
+		forgetVariant(key); //按尺寸版本的键删除时
+		Bitmap victim = victims.remove(key);
+		Bitmap bitmap = sHardBitmapCache.remove(key);
+		return bitmap != null ? bitmap : victim;
+	}
 
-		if (previous != null) {
-			sSoftBitmapCache.put(key, new SoftReference<Bitmap>(previous));
-			size -= sizeOf(previous);
+	@Override
+	public Map<String, Bitmap> getAll(Collection<String> keys) {
+		Map<String, Bitmap> values = new LinkedHashMap<String, Bitmap>();
+		for (String key : keys) {
+			Bitmap bitmap = get(key); //读取不加锁
+			if (bitmap != null) values.put(key, bitmap);
 		}
-
-		return previous;
+		return values;
+	}
+	
+	/**
+	 * 批量添加缓存图像，先在锁外解码，再一次放入缓存
+	 */
+	@Override
+	public void putAll(Map<String, ?> values) {
+		Map<String, Bitmap> bitmaps = new LinkedHashMap<String, Bitmap>();
+		for (Map.Entry<String, ?> e : values.entrySet()) {
+			Object value = e.getValue();
+			if (e.getKey() == null || value == null) continue;
+			if (!(value instanceof Bitmap)) value = decodeSource(value, 0, 0, decodeOptions);
+			if (value instanceof Bitmap) bitmaps.put(e.getKey(), (Bitmap) value);
+		}
+		sHardBitmapCache.putAll(bitmaps);
+		for (String key : bitmaps.keySet()) failures.remove(key);
+	}
+	
+	/**
+	 * 批量删除缓存图像及其各尺寸版本，只取得一次锁
+	 */
+	@Override
+	public Map<String, Bitmap> removeAll(Collection<String> keys) {
+		Set<String> all = new HashSet<String>();
+		for (String key : keys) {
+			if (key == null) continue;
+			all.add(key);
+			Set<String> variantKeys = variants.remove(key);
+			if (variantKeys != null) {
+				all.addAll(variantKeys);
+				variantBases.keySet().removeAll(variantKeys);
+			}
+		}
+		Map<String, Bitmap> removed = sHardBitmapCache.removeAll(all);
+		for (String k : all) {
+			forgetVariant(k);
+			Bitmap victim = victims.remove(k);
+			if (victim != null && !removed.containsKey(k)) removed.put(k, victim);
+		}
+		
+		Map<String, Bitmap> values = new LinkedHashMap<String, Bitmap>();
+		for (String key : keys) {
+			Bitmap bitmap = removed.get(key);
+			if (bitmap != null) values.put(key, bitmap);
+		}
+		return values;
 	}
 
 	@Override
@@ -166,39 +1106,38 @@ public class BitmapCache implements Cacheable<Bitmap> {
 
 	@Override
 	public void trimToSize(int size) {
-		if (size < 0 || (sHardBitmapCache.isEmpty() && size != 0)) {
-			 return;
-		}
-		while (size() > size) {
-			Map.Entry<String, Bitmap> toEvict = sHardBitmapCache.entrySet().iterator().next();
-			remove(toEvict.getKey());
-			
-		}
+		if (size < 0) return;
+		sHardBitmapCache.trimToCount(size);
 
 	}
 
 	@Override
 	public void clear() {
-		synchronized (sHardBitmapCache) {
-			sHardBitmapCache.clear();
+		sHardBitmapCache.clear();
+		synchronized (pins) {
+			poolable.clear(); //清空的图像不再放入复用池
 		}
-		size = 0;
-		sSoftBitmapCache.clear();
+		victims.clear();
+		variants.clear();
+		variantBases.clear();
+		failures.clear();
 	}
 
 	/**
 	 * 强制清空并回收所有缓存图像
 	 */
 	protected void clearAndRecycleCacheBitmap() {
-		Iterator<Entry<String, Bitmap>> iter = sHardBitmapCache.entrySet().iterator();
-		while (iter.hasNext()) {
-			Entry<String, Bitmap> entry = iter.next();
-			Bitmap bmp = entry.getValue();
+		for (Bitmap bmp : sHardBitmapCache.clear().values()) {
 			if (bmp != null && !bmp.isRecycled()) bmp.recycle();
-			iter.remove();
 		}
-		size = 0;
-		clearAndRecycleCacheBitmap(sSoftBitmapCache);
+		for (Bitmap bmp : victims.clear()) {
+			if (!bmp.isRecycled()) bmp.recycle();
+		}
+		synchronized (pins) {
+			poolable.clear();
+		}
+		variants.clear();
+		variantBases.clear();
 	}
 
 	/**
@@ -227,23 +1166,9 @@ public class BitmapCache implements Cacheable<Bitmap> {
 	 */
 	public int sizeOf(Bitmap value) {
 		if (value == null) return 0;
-		return  value.getRowBytes() * value.getHeight();
-	}
-
-	private synchronized void checkSize() {
-		System.out.println("[BitmapCache] cache size=" + size + " length=" + sHardBitmapCache.size());
-		if (size > maxSize) {
-			//least recently accessed item will be the first one iterated  
-			Iterator<Entry<String, Bitmap>> iter = sHardBitmapCache.entrySet().iterator();
-			while (iter.hasNext()) {
-				Entry<String, Bitmap> entry = iter.next();
-				size -= sizeOf(entry.getValue());
-				iter.remove();
-				if (size <= maxSize)
-					break;
-			}
-			System.out.println("[BitmapCache] Clean cache. New size " + sHardBitmapCache.size());
-		}
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+			return value.getAllocationByteCount(); //被复用的图像可能大于其当前尺寸
+		return value.getRowBytes() * value.getHeight();
 	}
 
 	/**
@@ -251,16 +1176,54 @@ public class BitmapCache implements Cacheable<Bitmap> {
 	 * @return
 	 */
 	public int getHits() {
-		return hits;
+		return hits.get();
 	}
 
 	/**
-	 * 设置最大内存占用大小
+	 * 设置最大内存占用大小，超出时立即淘汰最久未使用的图像
 	 * @param maxSize
 	 */
 	public void setMaxSize(long maxSize) {
 		if (maxSize <= 0) throw new IllegalArgumentException("size must be > 0");
-		this.maxSize = maxSize;
+		sHardBitmapCache.setMaximum(maxSize, maxCount);
+	}
+	
+	/**
+	 * 返回最大内存占用大小
+	 * @return
+	 */
+	public long getMaxSize() {
+		return sHardBitmapCache.getMaxWeight();
+	}
+	
+	/**
+	 * 设置被淘汰图像的最大内存占用，默认为可用内存的 1/16。这些图像以软引用保存，再次访问时放回缓存；
+	 * 设置了复用池时被淘汰的图像放入复用池，不再保存。
+	 * @param maxSize 为 0 时不保存
+	 */
+	public void setVictimMaxSize(long maxSize) {
+		if (maxSize < 0) throw new IllegalArgumentException("size must be >= 0");
+		victims.setMaxWeight(maxSize);
+	}
+	
+	public long getVictimMaxSize() {
+		return victims.getMaxWeight();
+	}
+	
+	/**
+	 * 返回被淘汰后仍保存的图像占用的内存大小 (不包括已被回收的图像)
+	 * @return
+	 */
+	public long getVictimSize() {
+		return victims.weight();
+	}
+	
+	/**
+	 * 返回当前缓存图像占用的内存大小 (写入时按 {@link #sizeOf(Bitmap)} 计算)
+	 * @return
+	 */
+	public long getSize() {
+		return sHardBitmapCache.weight();
 	}
 	
 	/**
@@ -297,8 +1260,13 @@ public class BitmapCache implements Cacheable<Bitmap> {
 		return bytes;
     }
 	
+	/**
+	 * 从文件获取图像，长边不超过 {@link DecodeOptions#getDefaultMaxDimension()}
+	 * @param file
+	 * @return
+	 */
 	public static Bitmap decodeBitmapFromFile(File file) {
-		return decodeBitmapFromFile(file, MAX_IMAGE_SIZE, MAX_IMAGE_SIZE);
+		return decodeBitmapFromFile(file, Integer.MAX_VALUE, Integer.MAX_VALUE);
 	}
 	
 	/**
@@ -309,6 +1277,31 @@ public class BitmapCache implements Cacheable<Bitmap> {
 	 * @return
 	 */
 	public static Bitmap decodeBitmapFromFile(File file, int reqWidth, int reqHeight) {
+		return decodeBitmapFromFile(file, reqWidth, reqHeight, null);
+	}
+	
+	/**
+	 * 从文件获取图像，尽量复用池中的图像
+	 * @param file
+	 * @param reqWidth
+	 * @param reqHeight
+	 * @param pool 图像复用池，可为 null
+	 * @return
+	 */
+	public static Bitmap decodeBitmapFromFile(File file, int reqWidth, int reqHeight, BitmapPool pool) {
+		return decodeBitmapFromFile(file, reqWidth, reqHeight, pool, null);
+	}
+	
+	/**
+	 * 按解码选项从文件获取图像，尽量复用池中的图像
+	 * @param file
+	 * @param reqWidth
+	 * @param reqHeight
+	 * @param pool 图像复用池，可为 null
+	 * @param decodeOptions 解码选项，为 null 时使用默认选项
+	 * @return
+	 */
+	public static Bitmap decodeBitmapFromFile(File file, int reqWidth, int reqHeight, BitmapPool pool, DecodeOptions decodeOptions) {
 		InputStream inputStream = null;
 		try {
 			inputStream = new FileInputStream(file);
@@ -316,11 +1309,16 @@ public class BitmapCache implements Cacheable<Bitmap> {
 			e.printStackTrace();
 		}
 		
-		return decodeBitmapFromStream(inputStream, reqWidth, reqHeight);
+		return decodeBitmapFromStream(inputStream, reqWidth, reqHeight, pool, decodeOptions);
 	}
 	
+	/**
+	 * 从输入流获取图像，长边不超过 {@link DecodeOptions#getDefaultMaxDimension()}
+	 * @param inputStream
+	 * @return
+	 */
 	public static Bitmap decodeBitmapFromStream(InputStream inputStream) {
-		return decodeBitmapFromStream(inputStream, MAX_IMAGE_SIZE, MAX_IMAGE_SIZE);
+		return decodeBitmapFromStream(inputStream, Integer.MAX_VALUE, Integer.MAX_VALUE);
 	}
 	
 	/**
@@ -331,37 +1329,317 @@ public class BitmapCache implements Cacheable<Bitmap> {
 	 * @return
 	 */
 	public static Bitmap decodeBitmapFromStream(InputStream inputStream, int reqWidth, int reqHeight) {
+		return decodeBitmapFromStream(inputStream, reqWidth, reqHeight, null);
+	}
+	
+	/**
+	 * 从输入流获取图像，尽量复用池中的图像
+	 * @param inputStream
+	 * @param reqWidth
+	 * @param reqHeight
+	 * @param pool 图像复用池，可为 null
+	 * @return
+	 */
+	public static Bitmap decodeBitmapFromStream(InputStream inputStream, int reqWidth, int reqHeight, BitmapPool pool) {
+		return decodeBitmapFromStream(inputStream, reqWidth, reqHeight, pool, null);
+	}
+	
+	/**
+	 * 按解码选项从输入流获取图像，尽量复用池中的图像
+	 * @param inputStream
+	 * @param reqWidth
+	 * @param reqHeight
+	 * @param pool 图像复用池，可为 null
+	 * @param decodeOptions 解码选项，为 null 时使用默认选项
+	 * @return
+	 */
+	public static Bitmap decodeBitmapFromStream(InputStream inputStream, int reqWidth, int reqHeight, BitmapPool pool,
+			DecodeOptions decodeOptions) {
 		if (inputStream == null) return null;
-		if (reqWidth <= 0 || reqHeight <= 0) return null;
+		if (decodeOptions == null) decodeOptions = DEFAULT_DECODE_OPTIONS;
+		if (reqWidth <= 0 || reqHeight <= 0) {
+			closeStream(inputStream);
+			return null;
+		}
+		
+		//文件直接通过文件描述符解码，两次解码都从文件读取，不经过堆内存
+		if (inputStream instanceof FileInputStream) {
+			try {
+				return decodeFileDescriptor((FileInputStream) inputStream, reqWidth, reqHeight, pool, decodeOptions);
+			} finally {
+				closeStream(inputStream);
+			}
+		}
 		
+		PooledBufferedInputStream is = new PooledBufferedInputStream(inputStream);
+		byte[] tempStorage = ByteArrayPool.get(TEMP_STORAGE_SIZE);
 		try {
-			byte[] byteArr = readInputStream(inputStream);
-			if (byteArr == null) return null;
-			
 			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inTempStorage = tempStorage;
 			options.inJustDecodeBounds = true;
-			BitmapFactory.decodeByteArray(byteArr, 0, byteArr.length, options);
-			
-			int height = options.outHeight;
-			int width = options.outWidth;
-			int inSampleSize = 1;
-			if (height > reqHeight || width > reqWidth) {
-				int halfHeight = height / 2;
-				int halfWidth = width / 2;
-				while ((halfHeight / inSampleSize) > reqHeight && (halfWidth / inSampleSize) > reqWidth) {
-					inSampleSize *= 2;
-				}
+			is.mark(MARK_LIMIT);
+			BoundedInputStream head = new BoundedInputStream(is, MARK_LIMIT); //读取尺寸不超出标记范围，之后总能回到开头
+			BitmapFactory.decodeStream(head, null, options);
+			is.reset();
+			if (options.outWidth <= 0 || options.outHeight <= 0) {
+				//尺寸信息在标记范围之后 (如很大的元数据)，写入临时文件后按文件描述符解码
+				if (head.isExhausted()) return decodeSpooled(is, reqWidth, reqHeight, pool, decodeOptions);
+				return null;
 			}
 			
-			options.inSampleSize = inSampleSize;
-			options.inJustDecodeBounds = false;
-			options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+			prepareOptions(options, reqWidth, reqHeight, pool, decodeOptions);
+			is.mark(MARK_LIMIT);
+			try {
+				return restoreDensity(BitmapFactory.decodeStream(is, null, options), options);
+			} catch (IllegalArgumentException e) {
+				if (options.inBitmap == null) throw e;
+				//复用的图像不适用于该图像，放回池中后重新分配 (已读取的内容超出标记范围时无法重新解码)
+				pool.put(options.inBitmap);
+				options.inBitmap = null;
+				is.reset();
+				return restoreDensity(BitmapFactory.decodeStream(is, null, options), options);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			ByteArrayPool.put(tempStorage);
+			closeStream(is);
+		}
+	}
+	
+	/**
+	 * 将输入流的内容写入临时文件，再按文件描述符解码
+	 */
+	private static Bitmap decodeSpooled(InputStream is, int reqWidth, int reqHeight, BitmapPool pool,
+			DecodeOptions decodeOptions) throws IOException {
+		File tmp = File.createTempFile("bitmap", ".tmp");
+		try {
+			OutputStream os = new FileOutputStream(tmp);
+			byte[] buffer = ByteArrayPool.get(STREAM_BUFFER_SIZE);
+			try {
+				int len;
+				while ((len = is.read(buffer)) != -1) os.write(buffer, 0, len);
+			} finally {
+				ByteArrayPool.put(buffer);
+				closeStream(os);
+			}
+			FileInputStream fis = new FileInputStream(tmp);
+			try {
+				return decodeFileDescriptor(fis, reqWidth, reqHeight, pool, decodeOptions);
+			} finally {
+				closeStream(fis);
+			}
+		} finally {
+			tmp.delete();
+		}
+	}
+	
+	private static Bitmap decodeFileDescriptor(FileInputStream fis, int reqWidth, int reqHeight, BitmapPool pool,
+			DecodeOptions decodeOptions) {
+		byte[] tempStorage = ByteArrayPool.get(TEMP_STORAGE_SIZE);
+		try {
+			FileDescriptor fd = fis.getFD();
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inTempStorage = tempStorage;
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeFileDescriptor(fd, null, options);
+			if (options.outWidth <= 0 || options.outHeight <= 0) return null;
 			
-			return BitmapFactory.decodeByteArray(byteArr, 0, byteArr.length, options);
+			prepareOptions(options, reqWidth, reqHeight, pool, decodeOptions);
+			try {
+				return restoreDensity(BitmapFactory.decodeFileDescriptor(fd, null, options), options);
+			} catch (IllegalArgumentException e) {
+				if (options.inBitmap == null) throw e;
+				pool.put(options.inBitmap);
+				options.inBitmap = null;
+				return restoreDensity(BitmapFactory.decodeFileDescriptor(fd, null, options), options);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			return null;
+		} finally {
+			ByteArrayPool.put(tempStorage);
+		}
+	}
+	
+	/**
+	 * 根据原图尺寸和解码选项设置缩小倍数、缩放和配置，并从复用池中取出可复用的图像
+	 * @param options 已取得原图尺寸的选项
+	 * @param reqWidth
+	 * @param reqHeight
+	 * @param pool 图像复用池，可为 null
+	 * @param decodeOptions 解码选项
+	 */
+	private static void prepareOptions(BitmapFactory.Options options, int reqWidth, int reqHeight, BitmapPool pool,
+			DecodeOptions decodeOptions) {
+		int height = options.outHeight;
+		int width = options.outWidth;
+		int maxDimension = decodeOptions.getMaxDimension();
+		reqWidth = Math.min(reqWidth, maxDimension);
+		reqHeight = Math.min(reqHeight, maxDimension);
+		int inSampleSize = 1;
+		if (height > reqHeight || width > reqWidth) {
+			int halfHeight = height / 2;
+			int halfWidth = width / 2;
+			while ((halfHeight / inSampleSize) > reqHeight && (halfWidth / inSampleSize) > reqWidth) {
+				inSampleSize *= 2;
+			}
+		}
+		//长边仍超过最大尺寸时继续缩小
+		while (Math.max(width, height) / inSampleSize > maxDimension) {
+			inSampleSize *= 2;
+		}
+		
+		options.inSampleSize = inSampleSize;
+		options.inJustDecodeBounds = false;
+		options.inPreferredConfig = decodeOptions.resolveConfig(options.outMimeType);
+		int outWidth = (int) Math.ceil(width / (double) inSampleSize);
+		int outHeight = (int) Math.ceil(height / (double) inSampleSize);
+		
+		//按 2 的幂缩小后再按密度缩放到所需尺寸 (KITKAT 及以上版本在解码时完成，不另外分配图像)
+		float scale = 1;
+		if (decodeOptions.isExactSize()) scale = Math.max(reqWidth / (float) outWidth, reqHeight / (float) outHeight);
+		scale = Math.min(scale, maxDimension / (float) Math.max(outWidth, outHeight));
+		if (scale < 1) {
+			options.inScaled = true;
+			options.inDensity = outWidth;
+			options.inTargetDensity = Math.max(1, Math.round(outWidth * scale));
+			//与解码时的计算方式一致
+			float actual = options.inTargetDensity / (float) options.inDensity;
+			outWidth = options.inTargetDensity;
+			outHeight = Math.max(1, (int) (outHeight * actual + 0.5f));
+		} else {
+			options.inScaled = false;
+		}
+		if (pool != null) setReusableBitmap(options, outWidth, outHeight, pool);
+	}
+	
+	/**
+	 * 解码完成后恢复密度。按密度缩放解码的图像带有 prepareOptions 设置的虚构密度 (约为其宽度)，
+	 * BitmapDrawable、Canvas.drawBitmap 等按密度绘制时会错误缩放，因此改为屏幕密度；
+	 * 选项的密度也恢复为默认值，以便再次使用。
+	 * @param bitmap 解码结果，可为 null
+	 * @param options
+	 * @return bitmap
+	 */
+	private static Bitmap restoreDensity(Bitmap bitmap, BitmapFactory.Options options) {
+		if (!options.inScaled || options.inDensity == 0) return bitmap;
+		options.inDensity = 0;
+		options.inTargetDensity = 0;
+		if (bitmap != null) bitmap.setDensity(getDisplayDensity());
+		return bitmap;
+	}
+	
+	private static int getDisplayDensity() {
+		try {
+			int density = Resources.getSystem().getDisplayMetrics().densityDpi;
+			if (density > 0) return density;
+		} catch (RuntimeException e) {
+			e.printStackTrace();
 		}
+		return DisplayMetrics.DENSITY_DEFAULT;
+	}
+	
+	/**
+	 * 缓冲数组取自 {@link ByteArrayPool} 的缓冲输入流，关闭时归还缓冲
+	 */
+	/**
+	 * 最多读取指定长度的输入流，之后视为已结束。不关闭下层的流
+	 */
+	private static final class BoundedInputStream extends FilterInputStream {
+		private int remaining;
+		
+		BoundedInputStream(InputStream in, int limit) {
+			super(in);
+			remaining = limit;
+		}
+		
+		/**
+		 * 是否已读到限制的长度
+		 */
+		boolean isExhausted() {
+			return remaining <= 0;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) return -1;
+			int b = in.read();
+			if (b != -1) remaining--;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) return -1;
+			int n = in.read(b, off, Math.min(len, remaining));
+			if (n > 0) remaining -= n;
+			return n;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(Math.min(n, remaining));
+			if (skipped > 0) remaining -= skipped;
+			return skipped;
+		}
+		
+		@Override
+		public int available() throws IOException {
+			return Math.min(in.available(), remaining);
+		}
+		
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+		
+		@Override
+		public void mark(int readlimit) {
+		}
+		
+		@Override
+		public void reset() throws IOException {
+			throw new IOException("mark/reset not supported");
+		}
+		
+		@Override
+		public void close() {
+		}
+	}
+	
+	private static final class PooledBufferedInputStream extends BufferedInputStream {
+		private byte[] pooled;
+		
+		PooledBufferedInputStream(InputStream in) {
+			super(in, 1);
+			pooled = ByteArrayPool.get(STREAM_BUFFER_SIZE);
+			buf = pooled;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			super.close();
+			//缓冲扩大后原数组也已不再使用
+			byte[] b = pooled;
+			pooled = null;
+			ByteArrayPool.put(b);
+		}
+	}
+	
+	/**
+	 * 从复用池中取出可用于解码的图像。(KITKAT 以前的版本只能复用尺寸相同且不缩放的图像)
+	 * @param options 已设置了缩小倍数和配置的选项
+	 * @param width 解码结果的宽度
+	 * @param height 解码结果的高度
+	 * @param pool
+	 */
+	private static void setReusableBitmap(BitmapFactory.Options options, int width, int height, BitmapPool pool) {
+		if (!BitmapPool.isSupported()) return;
+		options.inMutable = true; //解码出的图像以后也可以放入复用池
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT && (options.inSampleSize != 1 || options.inScaled)) return;
+		options.inBitmap = pool.get(width, height, options.inPreferredConfig);
 	}
 	
 }
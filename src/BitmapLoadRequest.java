@@ -0,0 +1,174 @@
+package com.sunteorum.kiku.cache;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 异步加载图像的请求
+ * <p>由 {@link BitmapCache#loadAsync(String, int, Object, BitmapCache.Callback)} 返回，依次经过读取 (I/O) 和解码两个阶段，
+ * 每个阶段在各自的线程池中按优先级排队：优先级高的先执行，优先级相同时后提交的先执行。
+ * 排队中的请求可以随时调整优先级或取消；请求者已被回收的请求在进入下一个阶段前被丢弃。</p>
+ * @author KYO
+ *
+ */
+public final class BitmapLoadRequest implements Runnable, Comparable<BitmapLoadRequest> {
+	/** 预加载 (屏幕外) */
+	public static final int PRIORITY_PREFETCH = -10;
+	public static final int PRIORITY_NORMAL = 0;
+	/** 屏幕上可见 */
+	public static final int PRIORITY_VISIBLE = 10;
+
+	static final int STATE_FETCH_QUEUED = 0;
+	static final int STATE_FETCHING = 1;
+	static final int STATE_DECODE_QUEUED = 2;
+	static final int STATE_DECODING = 3;
+	static final int STATE_DONE = 4;
+	static final int STATE_CANCELLED = 5;
+
+	private static final AtomicLong sSequence = new AtomicLong();
+
+	private final BitmapCache cache;
+	private final String key;
+	private final int width; //所需尺寸，为 0 时按原键加载
+	private final int height;
+	private final DecodeOptions options; //为 null 时使用默认选项
+	private final WeakReference<Object> requester; //为 null 时不跟随请求者
+	private final BitmapCache.Callback callback;
+	private final long sequence = sSequence.incrementAndGet();
+	private volatile int priority;
+	private int state = STATE_FETCH_QUEUED; //由 this 同步
+	File file; //读取阶段取得的文件
+	boolean temporary; //解码后是否删除该文件
+
+	BitmapLoadRequest(BitmapCache cache, String key, int width, int height, DecodeOptions options,
+			int priority, Object requester, BitmapCache.Callback callback) {
+		this.cache = cache;
+		this.key = key;
+		this.width = width;
+		this.height = height;
+		this.options = options;
+		this.priority = priority;
+		this.requester = requester == null ? null : new WeakReference<Object>(requester);
+		this.callback = callback;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public DecodeOptions getOptions() {
+		return options;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * 修改优先级，只对仍在排队的请求有效 (按新的优先级重新排队)
+	 * @param priority
+	 */
+	public void setPriority(int priority) {
+		if (this.priority == priority) return;
+		cache.reprioritize(this, priority);
+	}
+
+	/**
+	 * 由 {@link BitmapCache} 在请求移出队列后调用
+	 */
+	void updatePriority(int priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * 取消请求。排队中的请求立即移出队列；正在执行的阶段结束后不再继续，也不再回调。
+	 * @return 是否已取消，请求已完成时返回 false
+	 */
+	public boolean cancel() {
+		synchronized (this) {
+			if (state >= STATE_DONE) return false;
+			state = STATE_CANCELLED;
+		}
+		cache.dequeue(this);
+		return true;
+	}
+
+	public synchronized boolean isCancelled() {
+		return state == STATE_CANCELLED;
+	}
+
+	public synchronized boolean isDone() {
+		return state >= STATE_DONE;
+	}
+
+	/**
+	 * 请求者是否已被回收
+	 * @return
+	 */
+	boolean isAbandoned() {
+		return requester != null && requester.get() == null;
+	}
+
+	/**
+	 * 请求是否仍需要继续执行 (未取消且请求者仍存在)
+	 * @return
+	 */
+	public boolean isActive() {
+		return !isCancelled() && !isAbandoned();
+	}
+
+	/**
+	 * 进入下一个状态
+	 * @return 当前状态不是 from (已被取消) 时返回 false
+	 */
+	synchronized boolean advance(int from, int to) {
+		if (state != from) return false;
+		state = to;
+		return true;
+	}
+
+	/**
+	 * 删除读取阶段产生的临时文件
+	 */
+	void deleteTemporaryFile() {
+		if (temporary && file != null) file.delete();
+		file = null;
+	}
+
+	BitmapCache.Callback getCallback() {
+		return callback;
+	}
+
+	@Override
+	public void run() {
+		int state;
+		synchronized (this) {
+			state = this.state;
+		}
+		if (state == STATE_FETCH_QUEUED) cache.fetch(this);
+		else if (state == STATE_DECODE_QUEUED) cache.decode(this);
+		else deleteTemporaryFile(); //已取消
+	}
+
+	@Override
+	public int compareTo(BitmapLoadRequest another) {
+		if (priority != another.priority) return priority > another.priority ? -1 : 1;
+		if (sequence == another.sequence) return 0;
+		return sequence > another.sequence ? -1 : 1; //后提交的先执行
+	}
+
+	@Override
+	public String toString() {
+		return "BitmapLoadRequest[" + key + (width > 0 ? " " + width + "x" + height : "") + " priority=" + priority + "]";
+	}
+
+}
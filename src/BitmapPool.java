@@ -0,0 +1,226 @@
+package com.sunteorum.kiku.cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * 图像复用池
+ * <p>保存不再使用的可变图像，解码新图像时作为 {@link android.graphics.BitmapFactory.Options#inBitmap} 复用其内存，
+ * 避免频繁分配和回收大块内存。图像按配置和大小分组：KITKAT 及以上版本可以复用不小于所需大小的图像，
+ * 更早的版本只能复用尺寸和配置完全相同的图像。超出最大占用时回收最早放入的图像。</p>
+ * @author KYO
+ *
+ */
+public class BitmapPool {
+	private static final int MAX_SIZE_MULTIPLE = 4; //复用的图像最多为所需大小的倍数
+
+	//分组 → (大小 → 图像)
+	private final Map<String, TreeMap<Integer, LinkedList<Bitmap>>> groups = new HashMap<String, TreeMap<Integer, LinkedList<Bitmap>>>();
+	private final LinkedHashSet<Bitmap> order = new LinkedHashSet<Bitmap>(); //按放入顺序排列
+	private long size = 0; //当前内存占用
+	private long maxSize;
+	private int hitCount = 0;
+	private int missCount = 0;
+	private int putCount = 0;
+	private int evictionCount = 0;
+
+	/**
+	 * 构造方法
+	 * @param maxSize 最大内存占用
+	 */
+	public BitmapPool(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * 判断当前系统是否支持复用图像
+	 * @return
+	 */
+	public static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+	}
+
+	/**
+	 * 放入不再使用的图像 (放入后调用者不可再使用该图像)
+	 * @param bitmap
+	 * @return 是否已放入，否则该图像已被回收
+	 */
+	public boolean put(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled()) return false;
+		int bytes = getSize(bitmap);
+		if (!isSupported() || !bitmap.isMutable() || bitmap.getConfig() == null || bytes > maxSize) {
+			bitmap.recycle();
+			return false;
+		}
+
+		synchronized (this) {
+			if (!order.add(bitmap)) return true;
+			String group = getGroup(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+			TreeMap<Integer, LinkedList<Bitmap>> sizes = groups.get(group);
+			if (sizes == null) {
+				sizes = new TreeMap<Integer, LinkedList<Bitmap>>();
+				groups.put(group, sizes);
+			}
+			LinkedList<Bitmap> list = sizes.get(bytes);
+			if (list == null) {
+				list = new LinkedList<Bitmap>();
+				sizes.put(bytes, list);
+			}
+			list.addLast(bitmap);
+			size += bytes;
+			putCount++;
+			trimToSize(maxSize);
+		}
+		return true;
+	}
+
+	/**
+	 * 取出可用于解码指定尺寸和配置的图像，内容已清空
+	 * @param width
+	 * @param height
+	 * @param config
+	 * @return 没有合适的图像时返回 null
+	 */
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+		if (config == null || width <= 0 || height <= 0) return null;
+		TreeMap<Integer, LinkedList<Bitmap>> sizes = groups.get(getGroup(width, height, config));
+		int bytes = width * height * getBytesPerPixel(config);
+		Integer key = sizes == null ? null : sizes.ceilingKey(bytes);
+		if (key == null || key > bytes * MAX_SIZE_MULTIPLE) {
+			missCount++;
+			return null;
+		}
+
+		LinkedList<Bitmap> list = sizes.get(key);
+		Bitmap bitmap = list.removeLast();
+		if (list.isEmpty()) sizes.remove(key);
+		order.remove(bitmap);
+		size -= key;
+		hitCount++;
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+				&& (bitmap.getWidth() != width || bitmap.getHeight() != height || bitmap.getConfig() != config)) {
+			bitmap.reconfigure(width, height, config);
+		}
+		bitmap.eraseColor(0);
+		return bitmap;
+	}
+
+	/**
+	 * KITKAT 及以上版本按配置分组，更早的版本按尺寸和配置分组
+	 */
+	private static String getGroup(int width, int height, Bitmap.Config config) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) return config.name();
+		return width + "x" + height + "@" + config.name();
+	}
+
+	private static int getSize(Bitmap bitmap) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) return bitmap.getAllocationByteCount();
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	/**
+	 * 取得配置对应的每像素字节数
+	 * @param config
+	 * @return
+	 */
+	static int getBytesPerPixel(Bitmap.Config config) {
+		if (config == Bitmap.Config.ALPHA_8) return 1;
+		if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) return 2;
+		return 4;
+	}
+
+	/**
+	 * 回收最早放入的图像直至不超过指定大小
+	 * @param maxSize
+	 */
+	public synchronized void trimToSize(long maxSize) {
+		Iterator<Bitmap> iter = order.iterator();
+		while (size > maxSize && iter.hasNext()) {
+			Bitmap bitmap = iter.next();
+			iter.remove();
+			int bytes = getSize(bitmap);
+			TreeMap<Integer, LinkedList<Bitmap>> sizes = groups.get(getGroup(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()));
+			LinkedList<Bitmap> list = sizes.get(bytes);
+			list.remove(bitmap);
+			if (list.isEmpty()) sizes.remove(bytes);
+			size -= bytes;
+			evictionCount++;
+			bitmap.recycle();
+		}
+	}
+
+	/**
+	 * 回收所有图像
+	 */
+	public void clear() {
+		trimToSize(0);
+	}
+
+	/**
+	 * 设置最大内存占用
+	 * @param maxSize
+	 */
+	public synchronized void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * 返回池中图像占用的内存大小
+	 * @return
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * 返回取得可复用图像的次数
+	 * @return
+	 */
+	public synchronized int getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * 返回没有可复用图像的次数
+	 * @return
+	 */
+	public synchronized int getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * 返回放入图像的次数
+	 * @return
+	 */
+	public synchronized int getPutCount() {
+		return putCount;
+	}
+
+	/**
+	 * 返回因超出最大占用而回收图像的次数
+	 * @return
+	 */
+	public synchronized int getEvictionCount() {
+		return evictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "BitmapPool[size=" + size + " maxSize=" + maxSize + " hits=" + hitCount + " misses=" + missCount
+				+ " puts=" + putCount + " evictions=" + evictionCount + "]";
+	}
+
+}
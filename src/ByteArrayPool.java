@@ -0,0 +1,55 @@
+package com.sunteorum.kiku.cache;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * 字节数组池
+ * <p>保存解码时使用的临时缓冲 (如 {@link android.graphics.BitmapFactory.Options#inTempStorage})，
+ * 避免每次解码都分配新的大数组。池中数组的总长度有上限，超出时不再保存。</p>
+ * @author KYO
+ *
+ */
+final class ByteArrayPool {
+	private static final int MAX_POOL_SIZE = 1024 * 512; //池中数组的最大总长度
+
+	private static final LinkedList<byte[]> sPool = new LinkedList<byte[]>();
+	private static int sPoolSize = 0;
+
+	private ByteArrayPool() {
+	}
+
+	/**
+	 * 取得指定长度的数组 (内容未清空)
+	 * @param length
+	 * @return
+	 */
+	static byte[] get(int length) {
+		synchronized (sPool) {
+			Iterator<byte[]> iter = sPool.iterator();
+			while (iter.hasNext()) {
+				byte[] buf = iter.next();
+				if (buf.length == length) {
+					iter.remove();
+					sPoolSize -= length;
+					return buf;
+				}
+			}
+		}
+		return new byte[length];
+	}
+
+	/**
+	 * 归还数组，归还后调用者不可再使用
+	 * @param buf
+	 */
+	static void put(byte[] buf) {
+		if (buf == null) return;
+		synchronized (sPool) {
+			if (sPoolSize + buf.length > MAX_POOL_SIZE) return;
+			sPool.addFirst(buf);
+			sPoolSize += buf.length;
+		}
+	}
+
+}
@@ -0,0 +1,40 @@
+package com.sunteorum.kiku.cache;
+
+import java.io.IOException;
+
+/**
+ * 缓存内容编码器接口
+ * <p>{@link FileCache} 开启压缩后使用编码器压缩写入的文本和流内容，读取时按内容头部记录的编号找到编码器还原。
+ * 自定义的编码器需要通过 {@link FileCache#registerCodec(CacheCodec)} 注册后才能用于读取。</p>
+ * @author KYO
+ *
+ */
+public interface CacheCodec {
+	
+	/**
+	 * 取得编码器编号，记录在压缩内容的头部 (1 ~ 255，同一编号不可对应不同的格式)
+	 * @return
+	 */
+	public int getId();
+	
+	/**
+	 * 压缩内容
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return 压缩后的内容
+	 */
+	public byte[] encode(byte[] data, int offset, int length);
+	
+	/**
+	 * 还原内容
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param originalLength 原始内容的长度
+	 * @return 原始内容
+	 * @throws IOException 内容损坏时
+	 */
+	public byte[] decode(byte[] data, int offset, int length, int originalLength) throws IOException;
+	
+}
@@ -1,5 +1,8 @@
 package com.sunteorum.kiku.cache;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * 缓存类接口
  * @author KYO
@@ -38,6 +41,26 @@ public interface Cacheable<T extends Object> {
 	 */
 	public T remove(String key);
 	
+	/**
+	 * 批量取得缓存对象
+	 * @param keys
+	 * @return 存在的键及其缓存对象，按 keys 的顺序排列
+	 */
+	public Map<String, T> getAll(Collection<String> keys);
+	
+	/**
+	 * 批量添加缓存对象
+	 * @param values 键及其缓存对象
+	 */
+	public void putAll(Map<String, ?> values);
+	
+	/**
+	 * 批量移除缓存对象
+	 * @param keys
+	 * @return 被移除的键及其缓存对象
+	 */
+	public Map<String, T> removeAll(Collection<String> keys);
+	
 	/**
 	 * 取得缓存中的对象数量
 	 * @return
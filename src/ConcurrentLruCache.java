@@ -0,0 +1,403 @@
+package com.sunteorum.kiku.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 并发的最近最少使用缓存
+ * <p>读取不加锁：取值直接访问 {@link ConcurrentHashMap}，访问记录写入按线程分段的环形缓冲，
+ * 缓冲积累到一定数量后由取得锁的线程批量调整访问顺序 (缓冲已满时丢弃记录，只影响淘汰顺序的精度)。
+ * 写入和删除在锁内修改访问顺序，并顺带处理缓冲中的访问记录和超出限制的淘汰。</p>
+ * @author KYO
+ *
+ * @param <K>
+ * @param <V>
+ */
+class ConcurrentLruCache<K, V> {
+	private static final int READ_BUFFER_SIZE = 32; //每个访问缓冲的容量 (2 的幂)
+	private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+	private static final int READ_DRAIN_THRESHOLD = 16; //访问缓冲积累到该数量时尝试处理
+	private static final int READ_BUFFER_COUNT = ceilingPowerOfTwo(Math.min(16, Runtime.getRuntime().availableProcessors() * 2));
+
+	/**
+	 * 计算缓存对象的权重 (如占用的内存大小)
+	 */
+	interface Weigher<V> {
+		int weigh(V value);
+	}
+
+	/**
+	 * 缓存对象被移出时的通知 (在锁外调用)
+	 */
+	interface RemovalListener<K, V> {
+		/**
+		 * @param key
+		 * @param value
+		 * @param replacement 替换该对象的新对象 (可能是同一个对象)，被淘汰或删除时为 null
+		 * @param evicted 是否因超出限制而被淘汰 (否则为被替换或删除)
+		 */
+		void onRemoval(K key, V value, V replacement, boolean evicted);
+	}
+
+	private static final class Node<K, V> {
+		final K key;
+		final V value;
+		final int weight;
+		Node<K, V> prev; //以下由锁保护
+		Node<K, V> next;
+		boolean linked;
+
+		Node(K key, V value, int weight) {
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * 访问记录的环形缓冲，多个线程写入，持有锁的线程读取
+	 */
+	private static final class ReadBuffer<K, V> {
+		final AtomicReferenceArray<Node<K, V>> nodes = new AtomicReferenceArray<Node<K, V>>(READ_BUFFER_SIZE);
+		final AtomicLong writeCount = new AtomicLong();
+		volatile long readCount = 0;
+
+		/**
+		 * @return 缓冲中未处理的记录数，缓冲已满时返回 -1
+		 */
+		int record(Node<K, V> node) {
+			long write = writeCount.get();
+			int pending = (int) (write - readCount);
+			if (pending >= READ_BUFFER_SIZE) return -1;
+			if (!writeCount.compareAndSet(write, write + 1)) return pending; //竞争失败时放弃本次记录
+			nodes.lazySet((int) (write & READ_BUFFER_MASK), node);
+			return pending + 1;
+		}
+	}
+
+	private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<K, Node<K, V>>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final ReadBuffer<K, V>[] readBuffers;
+	private final Weigher<V> weigher;
+	private final RemovalListener<K, V> listener;
+	private Node<K, V> head; //最久未使用，以下由锁保护
+	private Node<K, V> tail; //最近使用
+	private volatile long weight = 0;
+	private volatile long maxWeight;
+	private volatile int maxCount;
+
+	/**
+	 * @param maxWeight 最大总权重，小于 0 时不限制
+	 * @param maxCount 最大数量，小于 0 时不限制
+	 * @param weigher 权重计算，为 null 时每个对象的权重为 1
+	 * @param listener 移出通知，可为 null
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	ConcurrentLruCache(long maxWeight, int maxCount, Weigher<V> weigher, RemovalListener<K, V> listener) {
+		this.maxWeight = maxWeight;
+		this.maxCount = maxCount;
+		this.weigher = weigher;
+		this.listener = listener;
+		readBuffers = new ReadBuffer[READ_BUFFER_COUNT];
+		for (int i = 0; i < readBuffers.length; i++) readBuffers[i] = new ReadBuffer<K, V>();
+	}
+
+	private static int ceilingPowerOfTwo(int n) {
+		int p = 1;
+		while (p < n) p <<= 1;
+		return p;
+	}
+
+	/**
+	 * 取得缓存对象并记录访问
+	 * @param key
+	 * @return 不存在时返回 null
+	 */
+	V get(K key) {
+		Node<K, V> node = data.get(key);
+		if (node == null) return null;
+		ReadBuffer<K, V> buffer = readBuffers[(int) Thread.currentThread().getId() & (readBuffers.length - 1)];
+		int pending = buffer.record(node);
+		if ((pending < 0 || pending >= READ_DRAIN_THRESHOLD) && lock.tryLock()) {
+			try {
+				drainReadBuffers();
+			} finally {
+				lock.unlock();
+			}
+		}
+		return node.value;
+	}
+
+	/**
+	 * 取得缓存对象，不记录访问
+	 * @param key
+	 * @return 不存在时返回 null
+	 */
+	V peek(K key) {
+		Node<K, V> node = data.get(key);
+		return node == null ? null : node.value;
+	}
+
+	boolean containsKey(K key) {
+		return data.containsKey(key);
+	}
+
+	/**
+	 * 添加或替换缓存对象，超出限制时淘汰最久未使用的对象
+	 * @param key
+	 * @param value
+	 * @return 被替换的对象，不存在时返回 null
+	 */
+	V put(K key, V value) {
+		Node<K, V> node = new Node<K, V>(key, value, weigher == null ? 1 : weigher.weigh(value));
+		Node<K, V> previous;
+		List<Node<K, V>> evicted;
+		lock.lock();
+		try {
+			drainReadBuffers();
+			previous = data.put(key, node);
+			if (previous != null) unlink(previous);
+			link(node);
+			evicted = evict(maxWeight, maxCount);
+		} finally {
+			lock.unlock();
+		}
+		if (previous != null) notifyRemoval(previous, value, false);
+		notifyEvicted(evicted);
+		return previous == null ? null : previous.value;
+	}
+
+	/**
+	 * 删除缓存对象
+	 * @param key
+	 * @return 被删除的对象，不存在时返回 null
+	 */
+	V remove(K key) {
+		Node<K, V> node;
+		lock.lock();
+		try {
+			node = data.remove(key);
+			if (node != null) unlink(node);
+		} finally {
+			lock.unlock();
+		}
+		if (node == null) return null;
+		notifyRemoval(node, null, false);
+		return node.value;
+	}
+
+	/**
+	 * 批量添加或替换缓存对象，只取得一次锁
+	 * @param values
+	 */
+	void putAll(Map<? extends K, ? extends V> values) {
+		List<Node<K, V>> nodes = new ArrayList<Node<K, V>>(values.size());
+		for (Map.Entry<? extends K, ? extends V> e : values.entrySet()) {
+			V value = e.getValue();
+			nodes.add(new Node<K, V>(e.getKey(), value, weigher == null ? 1 : weigher.weigh(value)));
+		}
+		List<Node<K, V>> replaced = new ArrayList<Node<K, V>>();
+		List<V> replacements = new ArrayList<V>();
+		List<Node<K, V>> evicted;
+		lock.lock();
+		try {
+			drainReadBuffers();
+			for (Node<K, V> node : nodes) {
+				Node<K, V> previous = data.put(node.key, node);
+				if (previous != null) {
+					unlink(previous);
+					replaced.add(previous);
+					replacements.add(node.value);
+				}
+				link(node);
+			}
+			evicted = evict(maxWeight, maxCount);
+		} finally {
+			lock.unlock();
+		}
+		for (int i = 0; i < replaced.size(); i++) notifyRemoval(replaced.get(i), replacements.get(i), false);
+		notifyEvicted(evicted);
+	}
+
+	/**
+	 * 批量删除缓存对象，只取得一次锁
+	 * @param keys
+	 * @return 被删除的键及其对象
+	 */
+	Map<K, V> removeAll(Collection<? extends K> keys) {
+		List<Node<K, V>> removed = new ArrayList<Node<K, V>>();
+		lock.lock();
+		try {
+			for (K key : keys) {
+				Node<K, V> node = data.remove(key);
+				if (node == null) continue;
+				unlink(node);
+				removed.add(node);
+			}
+		} finally {
+			lock.unlock();
+		}
+		Map<K, V> values = new LinkedHashMap<K, V>();
+		for (Node<K, V> node : removed) {
+			values.put(node.key, node.value);
+			notifyRemoval(node, null, false);
+		}
+		return values;
+	}
+
+	/**
+	 * 修改限制，超出新限制时立即淘汰
+	 * @param maxWeight 最大总权重，小于 0 时不限制
+	 * @param maxCount 最大数量，小于 0 时不限制
+	 */
+	void setMaximum(long maxWeight, int maxCount) {
+		List<Node<K, V>> evicted;
+		lock.lock();
+		try {
+			this.maxWeight = maxWeight;
+			this.maxCount = maxCount;
+			drainReadBuffers();
+			evicted = evict(maxWeight, maxCount);
+		} finally {
+			lock.unlock();
+		}
+		notifyEvicted(evicted);
+	}
+
+	/**
+	 * 淘汰最久未使用的对象直至不超过指定数量 (不改变限制)
+	 * @param count
+	 */
+	void trimToCount(int count) {
+		List<Node<K, V>> evicted;
+		lock.lock();
+		try {
+			drainReadBuffers();
+			evicted = evict(-1, count);
+		} finally {
+			lock.unlock();
+		}
+		notifyEvicted(evicted);
+	}
+
+	/**
+	 * 清空缓存 (不发送移出通知)
+	 * @return 被清除的对象，按最久未使用的顺序排列
+	 */
+	Map<K, V> clear() {
+		Map<K, V> removed = new LinkedHashMap<K, V>();
+		lock.lock();
+		try {
+			drainReadBuffers();
+			for (Node<K, V> node = head; node != null; node = node.next) {
+				node.linked = false;
+				removed.put(node.key, node.value);
+			}
+			head = tail = null;
+			data.clear();
+			weight = 0;
+		} finally {
+			lock.unlock();
+		}
+		return removed;
+	}
+
+	int size() {
+		return data.size();
+	}
+
+	/**
+	 * 返回当前的总权重
+	 * @return
+	 */
+	long weight() {
+		return weight;
+	}
+
+	long getMaxWeight() {
+		return maxWeight;
+	}
+
+	private void link(Node<K, V> node) {
+		node.prev = tail;
+		node.next = null;
+		if (tail == null) head = node;
+		else tail.next = node;
+		tail = node;
+		node.linked = true;
+		weight += node.weight;
+	}
+
+	private void unlink(Node<K, V> node) {
+		if (!node.linked) return;
+		if (node.prev == null) head = node.next;
+		else node.prev.next = node.next;
+		if (node.next == null) tail = node.prev;
+		else node.next.prev = node.prev;
+		node.prev = node.next = null;
+		node.linked = false;
+		weight -= node.weight;
+	}
+
+	private void moveToTail(Node<K, V> node) {
+		if (!node.linked || node == tail) return;
+		if (node.prev == null) head = node.next;
+		else node.prev.next = node.next;
+		node.next.prev = node.prev;
+		node.prev = tail;
+		node.next = null;
+		tail.next = node;
+		tail = node;
+	}
+
+	/**
+	 * 按记录顺序处理访问缓冲 (持有锁时调用)
+	 */
+	private void drainReadBuffers() {
+		for (ReadBuffer<K, V> buffer : readBuffers) {
+			long read = buffer.readCount;
+			long write = buffer.writeCount.get();
+			for (; read < write; read++) {
+				int index = (int) (read & READ_BUFFER_MASK);
+				Node<K, V> node = buffer.nodes.get(index);
+				if (node == null) break; //记录尚未写入
+				buffer.nodes.lazySet(index, null);
+				moveToTail(node);
+			}
+			buffer.readCount = read;
+		}
+	}
+
+	/**
+	 * 淘汰最久未使用的对象直至不超过限制 (持有锁时调用)
+	 * @return 被淘汰的对象
+	 */
+	private List<Node<K, V>> evict(long maxWeight, int maxCount) {
+		List<Node<K, V>> evicted = null;
+		while (head != null && ((maxWeight >= 0 && weight > maxWeight) || (maxCount >= 0 && data.size() > maxCount))) {
+			Node<K, V> node = head;
+			unlink(node);
+			data.remove(node.key, node);
+			if (evicted == null) evicted = new ArrayList<Node<K, V>>();
+			evicted.add(node);
+		}
+		return evicted;
+	}
+
+	private void notifyEvicted(List<Node<K, V>> evicted) {
+		if (evicted == null) return;
+		for (Node<K, V> node : evicted) notifyRemoval(node, null, true);
+	}
+
+	private void notifyRemoval(Node<K, V> node, V replacement, boolean evicted) {
+		if (listener != null) listener.onRemoval(node.key, node.value, replacement, evicted);
+	}
+
+}
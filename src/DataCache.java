@@ -1,17 +1,44 @@
 package com.sunteorum.kiku.cache;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
+import android.os.Build;
 
 /**
  * 数据缓存类
+ * <p>以 SQLite 数据表保存字符串数据，键为 uri 列 (唯一索引)。读取、写入和删除使用预先编译的语句，
+ * 数据库开启预写日志 (WAL)，读取不会被写入阻塞。读取时的访问时间和次数先记录在内存中，
+ * 由后台线程定期在一个事务中写入，读取本身不写数据库。</p>
+ * <p>数据可以设置过期时间，读取时由查询条件跳过已过期的数据，后台线程定期分批删除。
+ * 写入时记录数据的字节数 (size 列)。按数量或数据大小删除时，借助 (expire) 和 (last_get_time, get_count, size) 索引
+ * 找到需要删除的数据，不必读取数据本身。</p>
  * @author KYO
  *
  */
 public class DataCache implements Cacheable<String> {
 	public final static String DATA_NAME = "data_cache.db";
+	public final static int DATA_VERSION = 2; //版本 2 增加数据大小列以及过期时间和访问统计的索引
 	public final static String TABLE_NAME = "master";
 	public final static String FIELD_ID = "_id";
 	public final static String FIELD_TAG = "tag";
@@ -23,73 +50,622 @@ public class DataCache implements Cacheable<String> {
 	public final static String FIELD_LAST_GET_TIME = "last_get_time";
 	public final static String FIELD_GET_COUNT = "get_count";
 	public final static String FIELD_EXPIRE = "expire";
+	public final static String FIELD_SIZE = "size"; //数据的字节数
+	private final static long STATS_FLUSH_DELAY = 30 * 1000; //访问统计写入数据库的间隔 (毫秒)
+	private final static int STATS_FLUSH_SIZE = 256; //记录的键达到该数量时立即写入
+	private final static long SWEEP_INTERVAL = 10 * 60 * 1000; //删除过期数据的间隔 (毫秒)
+	private final static int SWEEP_CHUNK = 128; //每次删除的过期数据条数，避免长时间占用写锁
+	private final static int MAX_QUERY_ARGS = 999; //一条语句的参数数量上限 (SQLite 3.32 之前的默认值)
 	
 	private final Context context;
+	private final String tableName;
     private static DataCacheHelper instance = null;
     private static SQLiteDatabase database = null;
 	
+	//预先编译的语句，不可同时使用，各自同步
+	private SQLiteStatement containsStatement;
+	private SQLiteStatement getStatement;
+	private SQLiteStatement touchStatement;
+	private SQLiteStatement putStatement;
+	private SQLiteStatement removeStatement;
+	private SQLiteStatement countStatement;
+	private SQLiteStatement sweepStatement;
+	private SQLiteStatement dataSizeStatement;
+	
+	//尚未写入数据库的访问统计：键 → {最后访问时间, 访问次数}，由自身同步
+	private final HashMap<String, long[]> accesses = new HashMap<String, long[]>();
+	private final AtomicBoolean flushPending = new AtomicBoolean(false); //已安排延迟写入
+	private final AtomicBoolean flushQueued = new AtomicBoolean(false); //已提交立即写入，执行前不再重复提交
+	private ScheduledExecutorService executor; //写入访问统计和删除过期数据的线程
+	private final Runnable flushTask = new Runnable() {
+
+		@Override
+		public void run() {
+			flushQueued.set(false);
+			flushPending.set(false);
+			flushStats();
+		}
+		
+	};
+	private final Runnable sweepTask = new Runnable() {
+
+		@Override
+		public void run() {
+			sweepExpired();
+		}
+		
+	};
+	
+	/**
+	 * 构造方法
+	 * @param context
+	 * @param tableName 数据表名称，不存在时创建
+	 */
 	public DataCache(Context context, String tableName) {
 		this.context = context;
+		this.tableName = tableName != null ? tableName : TABLE_NAME;
 		DataCacheHelper.getInstance(this.context);
 		
+		SQLiteDatabase db = database;
+		if (db == null) return;
+		try {
+			DataCacheHelper.createTable(db, this.tableName); //同时补充旧数据表缺少的索引
+			compileStatements(db);
+			getExecutor().scheduleWithFixedDelay(sweepTask, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+		} catch (SQLiteException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void compileStatements(SQLiteDatabase db) {
+		String t = tableName;
+		String alive = " and (" + FIELD_EXPIRE + " = 0 or " + FIELD_EXPIRE + " > ?)"; //未过期
+		containsStatement = db.compileStatement("select count(*) from " + t + " where " + FIELD_URI + " = ?" + alive);
+		getStatement = db.compileStatement("select " + FIELD_DATA + " from " + t + " where " + FIELD_URI + " = ?" + alive);
+		touchStatement = db.compileStatement("update " + t + " set " + FIELD_LAST_GET_TIME + " = max(" + FIELD_LAST_GET_TIME
+				+ ", ?), " + FIELD_GET_COUNT + " = " + FIELD_GET_COUNT + " + ? where " + FIELD_URI + " = ?");
+		putStatement = db.compileStatement("insert or replace into " + t + " (" + FIELD_TAG + ", " + FIELD_TYPE + ", "
+				+ FIELD_URI + ", " + FIELD_DATA + ", " + FIELD_EXTRA_INFO + ", " + FIELD_ENTER_TIME + ", "
+				+ FIELD_LAST_GET_TIME + ", " + FIELD_GET_COUNT + ", " + FIELD_EXPIRE + ", " + FIELD_SIZE
+				+ ") values (?1, ?2, ?3, ?4, ?5, ?6, ?7, 0, ?8, length(cast(?4 as blob)))");
+		removeStatement = db.compileStatement("delete from " + t + " where " + FIELD_URI + " = ?");
+		countStatement = db.compileStatement("select count(*) from " + t);
+		sweepStatement = db.compileStatement("delete from " + t + " where " + FIELD_ID + " in (select " + FIELD_ID + " from " + t
+				+ " where " + FIELD_EXPIRE + " > 0 and " + FIELD_EXPIRE + " <= ? limit " + SWEEP_CHUNK + ")");
+		dataSizeStatement = db.compileStatement("select total(" + FIELD_SIZE + ") from " + t); //只读取索引
+	}
+	
+	/**
+	 * 返回数据表名称
+	 * @return
+	 */
+	public String getTableName() {
+		return tableName;
 	}
 
 	@Override
 	public boolean contains(String key) {
-		// TODO Auto-generated method stub
-		return false;
+		if (key == null || containsStatement == null) return false;
+		try {
+			synchronized (containsStatement) {
+				containsStatement.bindString(1, key);
+				containsStatement.bindLong(2, System.currentTimeMillis());
+				return containsStatement.simpleQueryForLong() > 0;
+			}
+		} catch (SQLiteException e) {
+			e.printStackTrace();
+			return false;
+		}
 	}
 
 	@Override
 	public void put(String key, Object value) {
-		// TODO Auto-generated method stub
+		put(key, value, null, 0, null);
+	}
+
+	/**
+	 * 添加缓存数据，超过有效时长后过期
+	 * @param key
+	 * @param value
+	 * @param maxAge 有效时长 (毫秒)，为 0 时不过期
+	 * @return 是否已保存
+	 */
+	public boolean put(String key, Object value, long maxAge) {
+		return put(key, value, null, 0, null, maxAge > 0 ? System.currentTimeMillis() + maxAge : 0);
+	}
+
+	/**
+	 * 添加缓存数据
+	 * @param key
+	 * @param value 数据，按 {@link Object#toString()} 保存
+	 * @param tag 标签，可为 null
+	 * @param type 类型
+	 * @param extraInfo 附加信息，可为 null
+	 * @return 是否已保存
+	 */
+	public boolean put(String key, Object value, String tag, int type, String extraInfo) {
+		return put(key, value, tag, type, extraInfo, 0);
+	}
 
+	/**
+	 * 添加缓存数据
+	 * @param key
+	 * @param value 数据，按 {@link Object#toString()} 保存
+	 * @param tag 标签，可为 null
+	 * @param type 类型
+	 * @param extraInfo 附加信息，可为 null
+	 * @param expire 过期时间 (毫秒)，为 0 时不过期
+	 * @return 是否已保存
+	 */
+	public boolean put(String key, Object value, String tag, int type, String extraInfo, long expire) {
+		SQLiteStatement statement = putStatement;
+		if (key == null || value == null || statement == null) return false;
+		discardStats(Collections.singleton(key)); //替换后重新统计
+		try {
+			synchronized (statement) {
+				return insert(statement, key, value, tag, type, extraInfo, expire, System.currentTimeMillis());
+			}
+		} catch (SQLiteException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * 执行写入语句，调用者需持有该语句的锁
+	 * @throws SQLiteException 写入失败时
+	 */
+	private static boolean insert(SQLiteStatement statement, String key, Object value, String tag, int type,
+			String extraInfo, long expire, long now) {
+		bindStringOrNull(statement, 1, tag);
+		statement.bindLong(2, type);
+		statement.bindString(3, key);
+		statement.bindString(4, value.toString());
+		bindStringOrNull(statement, 5, extraInfo);
+		statement.bindLong(6, now);
+		statement.bindLong(7, now);
+		statement.bindLong(8, expire);
+		return statement.executeInsert() != -1;
+	}
+	
+	private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+		if (value == null) statement.bindNull(index);
+		else statement.bindString(index, value);
 	}
 
 	@Override
 	public String get(String key) {
-		// TODO Auto-generated method stub
-		return null;
+		String data = query(key);
+		if (data != null) touch(key);
+		return data;
 	}
+	
+	/**
+	 * 读取数据，不记录访问
+	 * @param key
+	 * @return 不存在时返回 null
+	 */
+	private String query(String key) {
+		if (key == null || getStatement == null) return null;
+		try {
+			synchronized (getStatement) {
+				getStatement.bindString(1, key);
+				getStatement.bindLong(2, System.currentTimeMillis());
+				return getStatement.simpleQueryForString();
+			}
+		} catch (SQLiteDoneException e) {
+			return null; //没有记录
+		} catch (SQLiteException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * 在内存中记录访问时间和次数，由后台线程定期写入
+	 * @param key
+	 */
+	private void touch(String key) {
+		int pending;
+		synchronized (accesses) {
+			long[] access = accesses.get(key);
+			if (access == null) {
+				access = new long[2];
+				accesses.put(key, access);
+			}
+			access[0] = System.currentTimeMillis();
+			access[1]++;
+			pending = accesses.size();
+		}
+		if (pending >= STATS_FLUSH_SIZE) {
+			if (flushQueued.compareAndSet(false, true)) getExecutor().execute(flushTask);
+		} else if (flushPending.compareAndSet(false, true)) {
+			getExecutor().schedule(flushTask, STATS_FLUSH_DELAY, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * 放弃键的访问统计 (数据已被替换或删除)
+	 * @param keys
+	 */
+	private void discardStats(Collection<String> keys) {
+		synchronized (accesses) {
+			if (keys == null) accesses.clear();
+			else accesses.keySet().removeAll(keys);
+		}
+	}
+	
+	/**
+	 * 将内存中的访问统计在一个事务中写入数据库
+	 */
+	public void flushStats() {
+		Map<String, long[]> batch;
+		synchronized (accesses) {
+			if (accesses.isEmpty()) return;
+			batch = new HashMap<String, long[]>(accesses);
+			accesses.clear();
+		}
+		SQLiteDatabase db = database;
+		SQLiteStatement statement = touchStatement;
+		if (db == null || statement == null) return;
+		synchronized (statement) { //先取得语句的锁再开始事务
+			beginTransaction(db);
+			try {
+				for (Map.Entry<String, long[]> e : batch.entrySet()) {
+					statement.bindLong(1, e.getValue()[0]);
+					statement.bindLong(2, e.getValue()[1]);
+					statement.bindString(3, e.getKey());
+					executeUpdateDelete(db, statement);
+				}
+				db.setTransactionSuccessful();
+			} catch (SQLiteException e) {
+				e.printStackTrace();
+			} finally {
+				db.endTransaction();
+			}
+		}
+	}
+	
+	private synchronized ScheduledExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
 
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "DataCache-worker");
+					t.setDaemon(true);
+					return t;
+				}
+				
+			});
+		}
+		return executor;
+	}
+	
 	@Override
 	public String remove(String key) {
-		// TODO Auto-generated method stub
-		return null;
+		SQLiteStatement getter = getStatement, remover = removeStatement;
+		if (key == null || getter == null || remover == null) return null;
+		SQLiteDatabase db = database;
+		if (db == null) return null;
+		discardStats(Collections.singleton(key));
+		//与其他方法相同，先按固定顺序取得语句的锁再开始事务，避免与等待连接的单独读写互相等待
+		synchronized (getter) {
+			synchronized (remover) {
+				beginTransaction(db);
+				try {
+					String data = query(key);
+					remover.bindString(1, key); //已过期的数据也删除
+					executeUpdateDelete(db, remover);
+					db.setTransactionSuccessful();
+					return data;
+				} catch (SQLiteException e) {
+					e.printStackTrace();
+					return null;
+				} finally {
+					db.endTransaction();
+				}
+			}
+		}
+	}
+
+	/**
+	 * 以一条 in 查询读取全部数据 (键超过 SQLite 参数数量的限制时分批查询)，不开启事务 (写入事务会阻塞其他写入)
+	 */
+	@Override
+	public Map<String, String> getAll(Collection<String> keys) {
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		SQLiteDatabase db = database;
+		if (db == null) return values;
+		List<String> list = new ArrayList<String>(new LinkedHashSet<String>(keys));
+		list.remove(null);
+		Map<String, String> found = new HashMap<String, String>();
+		String alive = "(" + FIELD_EXPIRE + " = 0 or " + FIELD_EXPIRE + " > " + System.currentTimeMillis() + ")";
+		try {
+			for (int i = 0; i < list.size(); i += MAX_QUERY_ARGS) {
+				List<String> chunk = list.subList(i, Math.min(list.size(), i + MAX_QUERY_ARGS));
+				StringBuilder sql = new StringBuilder("select " + FIELD_URI + ", " + FIELD_DATA + " from " + tableName
+						+ " where " + alive + " and " + FIELD_URI + " in (");
+				for (int j = 0; j < chunk.size(); j++) sql.append(j == 0 ? "?" : ", ?");
+				sql.append(")");
+				Cursor cursor = db.rawQuery(sql.toString(), chunk.toArray(new String[chunk.size()]));
+				if (cursor == null) continue;
+				try {
+					while (cursor.moveToNext()) {
+						found.put(cursor.getString(0), cursor.getString(1));
+					}
+				} finally {
+					cursor.close();
+				}
+			}
+		} catch (SQLiteException e) {
+			e.printStackTrace();
+		}
+		
+		for (String key : keys) {
+			String data = found.get(key);
+			if (data == null) continue;
+			values.put(key, data);
+			touch(key);
+		}
+		return values;
+	}
+
+	/**
+	 * 在一个事务中添加全部数据，任何一条写入失败时全部回滚
+	 */
+	@Override
+	public void putAll(Map<String, ?> values) {
+		SQLiteDatabase db = database;
+		SQLiteStatement statement = putStatement;
+		if (db == null || statement == null) return;
+		discardStats(values.keySet());
+		long now = System.currentTimeMillis();
+		synchronized (statement) { //先取得语句的锁再开始事务
+			beginTransaction(db);
+			try {
+				for (Map.Entry<String, ?> e : values.entrySet()) {
+					if (e.getKey() == null || e.getValue() == null) continue;
+					insert(statement, e.getKey(), e.getValue(), null, 0, null, 0, now);
+				}
+				db.setTransactionSuccessful();
+			} catch (SQLiteException e) {
+				e.printStackTrace();
+			} finally {
+				db.endTransaction();
+			}
+		}
+	}
+
+	/**
+	 * 在一个事务中移除全部数据
+	 */
+	@Override
+	public Map<String, String> removeAll(Collection<String> keys) {
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		SQLiteDatabase db = database;
+		SQLiteStatement getter = getStatement, remover = removeStatement;
+		if (db == null || getter == null || remover == null) return values;
+		discardStats(keys);
+		synchronized (getter) {
+			synchronized (remover) {
+				beginTransaction(db);
+				try {
+					for (String key : keys) {
+						if (key == null) continue;
+						String data = query(key);
+						remover.bindString(1, key);
+						executeUpdateDelete(db, remover);
+						if (data != null) values.put(key, data);
+					}
+					db.setTransactionSuccessful();
+				} catch (SQLiteException e) {
+					e.printStackTrace();
+					values.clear();
+				} finally {
+					db.endTransaction();
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * 执行 update 或 delete 语句。executeUpdateDelete 从 API 11 开始提供，之前的版本用 execute 执行后
+	 * 以 changes() 查询影响的行数 (只有一个连接，但其他线程的写入可能插在两者之间，结果仅供参考)
+	 * @param db
+	 * @param statement
+	 * @return 影响的行数
+	 */
+	private static int executeUpdateDelete(SQLiteDatabase db, SQLiteStatement statement) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) return statement.executeUpdateDelete();
+		statement.execute();
+		return (int) DatabaseUtils.longForQuery(db, "select changes()", null);
+	}
+
+	/**
+	 * 开始事务，开启预写日志时不阻塞其他连接的读取
+	 * @param db
+	 */
+	private static void beginTransaction(SQLiteDatabase db) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) db.beginTransactionNonExclusive();
+		else db.beginTransaction();
 	}
 
 	@Override
 	public int size() {
-		// TODO Auto-generated method stub
-		return 0;
+		if (countStatement == null) return 0;
+		try {
+			synchronized (countStatement) {
+				return (int) countStatement.simpleQueryForLong();
+			}
+		} catch (SQLiteException e) {
+			e.printStackTrace();
+			return 0;
+		}
 	}
 
+	/**
+	 * 删除过期的数据，再删除最久未读取 (时间相同时读取次数最少) 的数据直至不超过指定数量
+	 */
 	@Override
 	public void trimToSize(int size) {
-		// TODO Auto-generated method stub
-
+		SQLiteDatabase db = database;
+		if (size < 0 || db == null) return;
+		flushStats(); //按最新的访问统计删除
+		try {
+			deleteExpired(db);
+			db.execSQL("delete from " + tableName + " where " + FIELD_ID + " in (select " + FIELD_ID + " from " + tableName
+					+ " order by " + FIELD_LAST_GET_TIME + ", " + FIELD_GET_COUNT + ", " + FIELD_SIZE + ", " + FIELD_ID
+					+ " limit max(0, (select count(*) from " + tableName + ") - ?))", new Object[] { size });
+		} catch (SQLiteException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * 删除过期的数据，再删除最久未读取 (时间相同时读取次数最少) 的数据直至数据总大小不超过指定字节数。
+	 * 按访问统计索引的顺序只读取 size 列，累计到超出的字节数后按同样的顺序删除这些数据。
+	 * @param maxBytes
+	 */
+	public void trimToBytes(long maxBytes) {
+		SQLiteDatabase db = database;
+		SQLiteStatement sizer = dataSizeStatement;
+		if (maxBytes < 0 || db == null || sizer == null) return;
+		flushStats();
+		//与访问统计索引的顺序 (包括隐含的 rowid) 相同，不需要另外排序
+		String order = " order by " + FIELD_LAST_GET_TIME + ", " + FIELD_GET_COUNT + ", " + FIELD_SIZE + ", " + FIELD_ID;
+		try {
+			deleteExpired(db);
+			synchronized (sizer) { //先取得语句的锁再开始事务
+				beginTransaction(db); //统计和删除之间不被其他写入改变
+				try {
+					long excess = sizer.simpleQueryForLong() - maxBytes;
+					if (excess <= 0) return;
+					
+					int count = 0;
+					Cursor cursor = db.rawQuery("select " + FIELD_SIZE + " from " + tableName + order, null);
+					if (cursor == null) return;
+					try {
+						while (excess > 0 && cursor.moveToNext()) {
+							excess -= cursor.getLong(0);
+							count++;
+						}
+					} finally {
+						cursor.close();
+					}
+					db.execSQL("delete from " + tableName + " where " + FIELD_ID + " in (select " + FIELD_ID + " from "
+							+ tableName + order + " limit ?)", new Object[] { count });
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+				}
+			}
+		} catch (SQLiteException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * 返回数据的总字节数 (按 size 列)
+	 * @return
+	 */
+	public long getDataSize() {
+		if (dataSizeStatement == null) return 0;
+		try {
+			synchronized (dataSizeStatement) {
+				return dataSizeStatement.simpleQueryForLong();
+			}
+		} catch (SQLiteException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+	
+	/**
+	 * 一次删除所有过期的数据 (按 expire 索引的范围)
+	 */
+	private void deleteExpired(SQLiteDatabase db) {
+		db.execSQL("delete from " + tableName + " where " + FIELD_EXPIRE + " > 0 and " + FIELD_EXPIRE + " <= ?",
+				new Object[] { System.currentTimeMillis() });
+	}
+	
+	/**
+	 * 分批删除过期的数据，每批为一个单独的事务，其他写入可以在批之间进行
+	 * @return 删除的数量
+	 */
+	public int sweepExpired() {
+		SQLiteDatabase db = database;
+		SQLiteStatement statement = sweepStatement;
+		if (db == null || statement == null) return 0;
+		long now = System.currentTimeMillis();
+		int total = 0, deleted;
+		try {
+			do {
+				synchronized (statement) {
+					statement.bindLong(1, now);
+					deleted = executeUpdateDelete(db, statement);
+				}
+				total += deleted;
+			} while (deleted >= SWEEP_CHUNK);
+		} catch (SQLiteException e) {
+			e.printStackTrace();
+		}
+		return total;
 	}
 
 	@Override
 	public void clear() {
-		// TODO Auto-generated method stub
+		SQLiteDatabase db = database;
+		if (db == null) return;
+		discardStats(null);
+		try {
+			db.execSQL("delete from " + tableName);
+		} catch (SQLiteException e) {
+			e.printStackTrace();
+		}
+	}
 
+	/**
+	 * 写入尚未写入的访问统计并释放预先编译的语句，之后不可再使用本实例
+	 */
+	public void close() {
+		flushStats();
+		synchronized (this) {
+			if (executor != null) executor.shutdownNow();
+			executor = null;
+		}
+		SQLiteStatement[] statements = { containsStatement, getStatement, touchStatement,
+				putStatement, removeStatement, countStatement, sweepStatement, dataSizeStatement };
+		for (SQLiteStatement statement : statements) {
+			if (statement == null) continue;
+			synchronized (statement) {
+				statement.close();
+			}
+		}
+		containsStatement = getStatement = touchStatement = putStatement = removeStatement = countStatement = null;
+		sweepStatement = dataSizeStatement = null;
 	}
 
 	public static class DataCacheHelper extends SQLiteOpenHelper {
 
 		protected DataCacheHelper(Context context) {
-			super(context, DATA_NAME, null, 1);
-			database = this.getWritableDatabase();
+			this(context, DATA_NAME, null, DATA_VERSION);
 		}
 
 		protected DataCacheHelper(Context context, String name, CursorFactory factory, int version) {
 			super(context, name, factory, version);
 			instance = this;
+			//开启预写日志，读取和写入可以同时进行
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) setWriteAheadLoggingEnabled(true);
 			database = this.getWritableDatabase();
+			if (database != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+					&& Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+				database.enableWriteAheadLogging();
+			}
 		}
 
-	    public static DataCacheHelper getInstance(Context context) {
+	    public static synchronized DataCacheHelper getInstance(Context context) {
 	        if (instance == null) {
 	            instance = new DataCacheHelper(context.getApplicationContext());
 	        }
@@ -99,34 +675,109 @@ public class DataCache implements Cacheable<String> {
 	    public static String getCreateSQL(String tableName) {
 	    	String sql = "create table if not exists " + tableName + " (" +
 					FIELD_ID + " integer primary key autoincrement, " +
-					FIELD_ID + " integer not null, " +
-					FIELD_ID + " varchar(64) not null, " +
-					FIELD_ID + " text not null, " +
-					FIELD_ID + " integer default 2, " +
-					FIELD_ID + " integer default 0, " +
-					FIELD_ID + " integer default 0, " +
-					FIELD_ID + " varchar(255) default null, " +
-					FIELD_ID + " varchar(255) default null, " +
-					FIELD_ID + " text ); ";
+					FIELD_TAG + " varchar(64) default null, " +
+					FIELD_TYPE + " integer default 0, " +
+					FIELD_URI + " text not null, " +
+					FIELD_DATA + " text, " +
+					FIELD_EXTRA_INFO + " varchar(255) default null, " +
+					FIELD_ENTER_TIME + " integer default 0, " +
+					FIELD_LAST_GET_TIME + " integer default 0, " +
+					FIELD_GET_COUNT + " integer default 0, " +
+					FIELD_EXPIRE + " integer default 0, " +
+					FIELD_SIZE + " integer default 0 ); ";
 	    	
 	    	return sql;
 	    }
 	    
-		@Override
-		public void onCreate(SQLiteDatabase db) {
-			
+		/**
+		 * 取得创建 uri 唯一索引的语句
+		 * @param tableName
+		 * @return
+		 */
+		public static String getCreateIndexSQL(String tableName) {
+			return "create unique index if not exists " + tableName + "_" + FIELD_URI + " on " + tableName + " (" + FIELD_URI + "); ";
+		}
+		
+		/**
+		 * 取得创建过期时间索引的语句 (用于删除过期数据)
+		 * @param tableName
+		 * @return
+		 */
+		public static String getCreateExpireIndexSQL(String tableName) {
+			return "create index if not exists " + tableName + "_" + FIELD_EXPIRE + " on " + tableName + " (" + FIELD_EXPIRE + "); ";
+		}
+		
+		/**
+		 * 取得创建访问统计索引的语句 (用于按访问时间和次数删除数据，包含 size 列，统计大小时不必读取数据)
+		 * @param tableName
+		 * @return
+		 */
+		public static String getCreateAccessIndexSQL(String tableName) {
+			return "create index if not exists " + tableName + "_access on " + tableName + " (" + FIELD_LAST_GET_TIME + ", "
+					+ FIELD_GET_COUNT + ", " + FIELD_SIZE + "); ";
+		}
+		
+		/**
+		 * 从版本 1 升级：为所有数据表 (包括构造时指定名称的数据表) 添加 size 列，并计算已有数据的大小
+		 * @param db
+		 */
+		private static void addSizeColumns(SQLiteDatabase db) {
+			List<String> tables = new ArrayList<String>();
+			Cursor cursor = db.rawQuery("select name from sqlite_master where type = 'table'", null);
+			if (cursor == null) return;
+			try {
+				while (cursor.moveToNext()) tables.add(cursor.getString(0));
+			} finally {
+				cursor.close();
+			}
+			for (String tableName : tables) {
+				List<String> columns = new ArrayList<String>();
+				cursor = db.rawQuery("pragma table_info(" + tableName + ")", null);
+				if (cursor == null) continue;
+				try {
+					while (cursor.moveToNext()) columns.add(cursor.getString(1));
+				} finally {
+					cursor.close();
+				}
+				//只处理缓存数据表
+				if (!columns.contains(FIELD_URI) || !columns.contains(FIELD_DATA) || columns.contains(FIELD_SIZE)) continue;
+				db.execSQL("alter table " + tableName + " add column " + FIELD_SIZE + " integer default 0");
+				db.execSQL("update " + tableName + " set " + FIELD_SIZE + " = length(cast(" + FIELD_DATA + " as blob))");
+			}
+		}
+		
+		/**
+		 * 创建数据表及其索引 (已存在时忽略)
+		 * @param db
+		 * @param tableName
+		 */
+		static void createTable(SQLiteDatabase db, String tableName) {
 			db.beginTransaction();
 			try {
-				db.execSQL(getCreateSQL(TABLE_NAME));
+				db.execSQL(getCreateSQL(tableName));
+				db.execSQL(getCreateIndexSQL(tableName));
+				db.execSQL(getCreateExpireIndexSQL(tableName));
+				db.execSQL(getCreateAccessIndexSQL(tableName));
 				db.setTransactionSuccessful();
 			} finally {
 				db.endTransaction();
 			}
+		}
+		
+		@Override
+		public void onCreate(SQLiteDatabase db) {
+			createTable(db, TABLE_NAME);
 
 		}
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			if (oldVersion == 1) {
+				//版本 2 增加 size 列和索引：列在此为所有数据表添加，其他数据表的索引在构造时创建
+				addSizeColumns(db);
+				createTable(db, TABLE_NAME);
+				return;
+			}
 			db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
 			
 			onCreate(db);
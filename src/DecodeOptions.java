@@ -0,0 +1,155 @@
+package com.sunteorum.kiku.cache;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.util.DisplayMetrics;
+
+/**
+ * 图像解码选项
+ * <p>控制 {@link BitmapCache} 解码图像时使用的配置和尺寸：不透明的图像 (如 JPEG) 可以使用 RGB_565，
+ * 每像素只占 2 字节；按 2 的幂缩小后还可以再精确缩放到所需尺寸；解码结果的长边不超过最大尺寸，
+ * 默认值根据设备的屏幕大小和可用内存计算。</p>
+ * @author KYO
+ *
+ */
+public class DecodeOptions {
+	private static final int MIN_MAX_DIMENSION = 1024;
+	private static final int MAX_MAX_DIMENSION = 4096; //常见设备的最大纹理尺寸
+	private static volatile int sDefaultMaxDimension = computeDefaultMaxDimension();
+
+	private Bitmap.Config config = Bitmap.Config.ARGB_8888;
+	private boolean preferRgb565 = false;
+	private boolean exactSize = false;
+	private int maxDimension = 0; //为 0 时使用默认值
+
+	/**
+	 * 默认的最大尺寸：单个 ARGB_8888 图像不超过可用内存的 1/16，并且不超过屏幕长边的 2 倍
+	 */
+	private static int computeDefaultMaxDimension() {
+		int dimension = (int) Math.sqrt(Runtime.getRuntime().maxMemory() / 16 / 4);
+		try {
+			DisplayMetrics metrics = Resources.getSystem().getDisplayMetrics();
+			int screen = Math.max(metrics.widthPixels, metrics.heightPixels);
+			if (screen > 0) dimension = Math.max(Math.min(dimension, screen * 2), screen);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+		return Math.max(MIN_MAX_DIMENSION, Math.min(MAX_MAX_DIMENSION, dimension));
+	}
+
+	/**
+	 * 返回默认的最大尺寸 (解码结果长边的最大像素数)
+	 * @return
+	 */
+	public static int getDefaultMaxDimension() {
+		return sDefaultMaxDimension;
+	}
+
+	/**
+	 * 设置默认的最大尺寸，如按 GL_MAX_TEXTURE_SIZE 设置
+	 * @param dimension
+	 */
+	public static void setDefaultMaxDimension(int dimension) {
+		if (dimension <= 0) throw new IllegalArgumentException("dimension must be > 0");
+		sDefaultMaxDimension = dimension;
+	}
+
+	public Bitmap.Config getConfig() {
+		return config;
+	}
+
+	/**
+	 * 设置解码使用的配置，默认为 ARGB_8888
+	 * @param config
+	 */
+	public void setConfig(Bitmap.Config config) {
+		if (config == null) throw new NullPointerException("config == null");
+		this.config = config;
+	}
+
+	public boolean isPreferRgb565() {
+		return preferRgb565;
+	}
+
+	/**
+	 * 设置不透明的图像是否使用 RGB_565 解码 (内存占用为 ARGB_8888 的一半，颜色精度较低)
+	 * @param preferRgb565
+	 */
+	public void setPreferRgb565(boolean preferRgb565) {
+		this.preferRgb565 = preferRgb565;
+	}
+
+	public boolean isExactSize() {
+		return exactSize;
+	}
+
+	/**
+	 * 设置是否在按 2 的幂缩小后再缩放到所需尺寸 (保持宽高比，宽高都不小于所需尺寸且至少一边相等)，
+	 * 否则解码结果可能接近所需尺寸的 2 倍
+	 * @param exactSize
+	 */
+	public void setExactSize(boolean exactSize) {
+		this.exactSize = exactSize;
+	}
+
+	/**
+	 * 返回解码结果长边的最大像素数
+	 * @return
+	 */
+	public int getMaxDimension() {
+		return maxDimension > 0 ? maxDimension : sDefaultMaxDimension;
+	}
+
+	/**
+	 * 设置解码结果长边的最大像素数
+	 * @param maxDimension 为 0 时使用 {@link #getDefaultMaxDimension()}
+	 */
+	public void setMaxDimension(int maxDimension) {
+		if (maxDimension < 0) throw new IllegalArgumentException("dimension must be >= 0");
+		this.maxDimension = maxDimension;
+	}
+
+	/**
+	 * 根据图像类型选择解码使用的配置
+	 * @param mimeType 解码尺寸时取得的类型，可为 null
+	 * @return
+	 */
+	Bitmap.Config resolveConfig(String mimeType) {
+		if (preferRgb565 && isOpaque(mimeType)) return Bitmap.Config.RGB_565;
+		return config;
+	}
+
+	/**
+	 * 判断解码结果可以使用的配置 (缩小已缓存的版本时使用)
+	 * @param config
+	 * @return
+	 */
+	boolean accepts(Bitmap.Config config) {
+		return config == this.config || (preferRgb565 && config == Bitmap.Config.RGB_565);
+	}
+
+	/**
+	 * 只有 JPEG 格式确定不含透明度
+	 */
+	private static boolean isOpaque(String mimeType) {
+		return "image/jpeg".equalsIgnoreCase(mimeType);
+	}
+
+	/**
+	 * 返回用于区分缓存版本的名称，默认选项为配置名称
+	 * @return
+	 */
+	String getVariantName() {
+		StringBuilder sb = new StringBuilder(config.name());
+		if (preferRgb565) sb.append("~565");
+		if (exactSize) sb.append("!");
+		if (maxDimension > 0) sb.append("<").append(maxDimension);
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "DecodeOptions[" + getVariantName() + "]";
+	}
+
+}
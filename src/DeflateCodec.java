@@ -0,0 +1,80 @@
+package com.sunteorum.kiku.cache;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate 编码器
+ * <p>压缩率较高，适合体积较大、读取较少的内容。</p>
+ * @author KYO
+ *
+ */
+public class DeflateCodec implements CacheCodec {
+	public static final int ID = 2;
+	
+	private final int level;
+	
+	public DeflateCodec() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+	
+	/**
+	 * @param level 压缩级别 (见 {@link Deflater})
+	 */
+	public DeflateCodec(int level) {
+		this.level = level;
+	}
+	
+	@Override
+	public int getId() {
+		return ID;
+	}
+	
+	@Override
+	public byte[] encode(byte[] data, int offset, int length) {
+		Deflater deflater = new Deflater(level);
+		try {
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+			byte[] out = new byte[length + (length >> 3) + 64];
+			int size = 0;
+			while (!deflater.finished()) {
+				if (size == out.length) {
+					byte[] grown = new byte[out.length * 2];
+					System.arraycopy(out, 0, grown, 0, size);
+					out = grown;
+				}
+				size += deflater.deflate(out, size, out.length - size);
+			}
+			byte[] result = new byte[size];
+			System.arraycopy(out, 0, result, 0, size);
+			return result;
+		} finally {
+			deflater.end();
+		}
+	}
+	
+	@Override
+	public byte[] decode(byte[] data, int offset, int length, int originalLength) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, offset, length);
+			byte[] out = new byte[originalLength];
+			int size = 0;
+			while (size < originalLength) {
+				int n = inflater.inflate(out, size, originalLength - size);
+				if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+				size += n;
+			}
+			if (size != originalLength) throw new IOException("deflate data truncated");
+			return out;
+		} catch (DataFormatException e) {
+			throw new IOException("deflate data corrupted: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+	
+}
@@ -1,17 +1,36 @@
 package com.sunteorum.kiku.cache;
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -24,16 +43,115 @@ import android.text.TextUtils;
  *
  */
 public class FileCache implements Cacheable<File> {
+	
+	/**
+	 * 延迟写入时的磁盘同步策略
+	 */
+	public enum SyncMode {
+		/** 不主动同步，由系统决定写回时机 */
+		NONE,
+		/** 每批写入完成后同步一次 */
+		BATCH,
+		/** 每个缓存文件写入后立即同步 */
+		EACH
+	}
+	
 	private final String CACHE_DIR_NAME = "file_cache"; //缓存目录名
 	private final String CACHE_FILE_PREFIX = ""; //缓存文件名前缀
 	private final String CACHE_FILE_SUFFIX = ""; //缓存文件名后缀
 	private final String CHARSET = "UTF-8"; //默认字符集
+	private final static char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private final static int DIGEST_LENGTH = 32; //键名中摘要的十六进制长度
+	private final static int LOCK_STRIPES = 64; //键锁的分段数量
+	private final static long PACK_SEGMENT_SIZE = 1024 * 1024 * 4; //打包存储的段文件大小
+	private final static int SWEEP_BATCH = 32; //过期清理每批删除的数量
+	private final static long SWEEP_SLICE_NANOS = 5 * 1000 * 1000; //过期清理每次最长占用的时间
+	private final static long SWEEP_PAUSE = 100; //过期清理两次之间的最短间隔 (毫秒)
+	private final static long SWEEP_DELAY = 1000; //过期后等待清理的最短时间 (毫秒)
+	private final static long CHECKPOINT_DELAY = 30 * 1000; //访问顺序写入日志的间隔 (毫秒)
+	private final static int CODEC_HEADER_LENGTH = 5; //压缩内容头部：编码器编号 (1) + 原始长度 (4)
+	private final static int COMPRESS_PROBE_LENGTH = 1024 * 4; //试压缩的长度
+	private final static float COMPRESS_MIN_RATIO = 0.9f; //压缩后不超过原长度的该比例时才保存压缩内容
+	private final static int COMPRESS_MAX_STREAM_LENGTH = 1024 * 1024; //超过该长度的流内容不压缩
+	
+	private static final ConcurrentHashMap<Integer, CacheCodec> sCodecs = new ConcurrentHashMap<Integer, CacheCodec>();
+	static {
+		registerCodec(new LzfCodec());
+		registerCodec(new DeflateCodec());
+	}
+	
+	private final static ThreadLocal<MessageDigest> sDigest = new ThreadLocal<MessageDigest>() {
+
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		
+	};
 	
 	private Context context;
 	private File cacheDir;
+	private FileCacheIndex index; //缓存文件索引
+	private FilePackStore pack; //小文件打包存储
+	private int packThreshold = 0; //不超过该长度的文本打包存储，0 为不使用
+	private volatile CacheCodec codec; //写入文本和流内容时使用的编码器，为 null 时不压缩
+	private int compressThreshold = 0; //不压缩短于该长度的内容
+	private volatile WriteBehindQueue writeQueue; //延迟写入队列，为 null 时直接写入
+	//正在写入的流式缓存，读取者可以跟随写入进度读取
+	private final ConcurrentHashMap<String, StreamingWrite> streaming = new ConcurrentHashMap<String, StreamingWrite>();
+	private boolean migrating = false; //是否还有旧版本（未分级目录）的缓存文件
 	private long freeSize = 1024 * 1024 * 10;
 	private long maxSize = 0;
-	private int hits = 0;
+	private final AtomicInteger hits = new AtomicInteger(); //多个读取线程同时更新
+	private final Object[] locks = new Object[LOCK_STRIPES]; //按键分段的写入锁
+	
+	private ScheduledExecutorService executor; //后台清理线程
+	private final AtomicBoolean evictionPending = new AtomicBoolean(false);
+	private final Runnable evictionTask = new Runnable() {
+
+		@Override
+		public void run() {
+			android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+			evictionPending.set(false);
+			evict(maxSize, -1);
+		}
+		
+	};
+	private long nextSweepTime = 0; //已安排的过期清理时间
+	private final Runnable sweepTask = new Runnable() {
+
+		@Override
+		public void run() {
+			android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+			sweepExpired();
+		}
+		
+	};
+	private final AtomicBoolean checkpointPending = new AtomicBoolean(false);
+	private final Runnable checkpointTask = new Runnable() {
+
+		@Override
+		public void run() {
+			checkpointPending.set(false);
+			index.checkpoint();
+		}
+		
+	};
+	private final AtomicBoolean compactionPending = new AtomicBoolean(false);
+	private final Runnable compactionTask = new Runnable() {
+
+		@Override
+		public void run() {
+			android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+			compactionPending.set(false);
+			compactPacks();
+		}
+		
+	};
 	
 	public FileCache(Context context) {
 		super();
@@ -41,26 +159,83 @@ public class FileCache implements Cacheable<File> {
 		cacheDir = new File(context.getCacheDir(), CACHE_DIR_NAME);
 		if (!cacheDir.exists()) cacheDir.mkdirs();
 		maxSize = getFolderFreeSize(cacheDir) - freeSize;
+		for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+		openIndex();
 	}
 
 	/**
-	 * 取得文件路径对应的键名。(用做该文件的缓存文件名)
+	 * 取得文件路径对应的键名。(用做该文件的缓存文件名，为路径 MD5 摘要的十六进制形式)
 	 * @param path 网络或本地的文件路径
 	 * @return
 	 */
 	public String getCacheKey(String path) {
 		if (TextUtils.isEmpty(path)) return null;
-		String key = CACHE_FILE_PREFIX + path.hashCode() + CACHE_FILE_SUFFIX;
+		byte[] digest;
+		try {
+			digest = sDigest.get().digest(path.getBytes(CHARSET));
+		} catch (java.io.UnsupportedEncodingException e) {
+			digest = sDigest.get().digest(path.getBytes());
+		}
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0x0f];
+			hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0x0f];
+		}
+		String key = CACHE_FILE_PREFIX + new String(hex) + CACHE_FILE_SUFFIX;
 		return key;
 	}
 	
 	/**
 	 * 取得文件路径指向的缓存文件。 ({@link #get(String)} 会判断该文件是否存在)。
+	 * <br>缓存文件按键名的前两级十六进制字符分散存放，如 <code>ab/cd/abcd...</code>。
 	 * @param path 网络或本地的文件路径
 	 * @return
 	 */
 	public File getCacheFile(String path) {
-		return new File(cacheDir, getCacheKey(path));
+		return getKeyFile(getCacheKey(path));
+	}
+	
+	/**
+	 * 取得键名对应的缓存文件。旧版本的键名 (路径的 hashCode) 直接位于缓存目录下。
+	 * @param key 缓存文件名
+	 * @return
+	 */
+	private File getKeyFile(String key) {
+		int start = CACHE_FILE_PREFIX.length();
+		if (key.length() != start + DIGEST_LENGTH + CACHE_FILE_SUFFIX.length())
+			return new File(cacheDir, key);
+		String shard = key.substring(start, start + 2) + File.separator + key.substring(start + 2, start + 4);
+		return new File(new File(cacheDir, shard), key);
+	}
+	
+	/**
+	 * 取得键名对应的写入锁。同一键的写入、删除互斥，后到的线程等待先到的写入完成后直接使用其结果。
+	 * @param key 缓存文件名
+	 * @return
+	 */
+	private Object getLock(String key) {
+		return locks[(key.hashCode() & 0x7fffffff) % locks.length];
+	}
+	
+	/**
+	 * 旧版本缓存文件迁移：旧键名由不可逆的 hashCode 生成，无法一次性换算，
+	 * 因此在首次访问对应路径时将旧文件移动到新的位置。
+	 * @param path 网络或本地的文件路径
+	 * @param f 新的缓存文件
+	 * @return 是否迁移了旧缓存文件
+	 */
+	private boolean migrateLegacyFile(String path, File f) {
+		if (!migrating || TextUtils.isEmpty(path)) return false;
+		String legacyKey = CACHE_FILE_PREFIX + path.hashCode() + CACHE_FILE_SUFFIX;
+		if (!index.contains(legacyKey)) return false;
+		
+		File legacy = new File(cacheDir, legacyKey);
+		File dir = f.getParentFile();
+		if (dir != null && !dir.exists()) dir.mkdirs();
+		FileCacheIndex.Entry entry = index.remove(legacyKey);
+		if (entry == null || !legacy.renameTo(f)) return false;
+		index.put(f.getName(), entry.length);
+		return true;
 	}
 	
 	/**
@@ -80,130 +255,981 @@ public class FileCache implements Cacheable<File> {
 		this.cacheDir = cacheDir;
 		if (!cacheDir.exists()) cacheDir.mkdirs();
 		maxSize = getFolderFreeSize(cacheDir) - freeSize;
+		if (index != null) index.close();
+		if (pack != null) pack.close();
+		openIndex();
+	}
+	
+	private void openIndex() {
+		index = new FileCacheIndex(cacheDir);
+		index.open();
+		pack = new FilePackStore(new File(cacheDir, FilePackStore.PACK_DIR_NAME), PACK_SEGMENT_SIZE);
+		pack.open(index.getPackedSizes());
+		index.removeMissingPacked(pack);
+		migrating = index.hasLegacyKeys(CACHE_FILE_PREFIX.length() + DIGEST_LENGTH + CACHE_FILE_SUFFIX.length());
+		long expire = index.getNextExpireTime();
+		if (expire != 0) scheduleSweep(expire);
+	}
+	
+	/**
+	 * 设置打包存储的长度上限。不超过该长度的文本 ({@link #put(String, Object)} 的值不是文件、图像或输入流时)
+	 * 将追加到共用的段文件中，而不是单独创建文件。
+	 * <br>打包存储的内容可以通过 {@link #getString(String)} 或 {@link #getBuffer(String)} 直接读取，
+	 * {@link #get(String)} 则会先将其转存为独立的缓存文件。
+	 * @param packThreshold 长度上限 (字节)，0 为不使用打包存储
+	 */
+	public void setPackThreshold(int packThreshold) {
+		if (packThreshold < 0) throw new IllegalArgumentException("threshold must be >= 0");
+		this.packThreshold = packThreshold;
+	}
+	
+	/**
+	 * 设置延迟写入。开启后 {@link #put(String, Object)} 只将内容加入队列即返回，由后台线程分批写入；
+	 * 同一个键尚未写入的内容会被后来的内容替换。输入流仍然直接写入，需要延迟写入时可传入 byte[]。
+	 * <br>读取尚未写入的键时，{@link #getString(String)} 直接返回队列中的文本，其他读取方法会先立即写入该键。
+	 * <br>注意：放入队列的图像在写入完成 ({@link #flush()}) 前不能回收。
+	 * @param capacity 队列容量，队列满时 put 将等待；0 为关闭延迟写入 (关闭前写入队列中剩余的内容)
+	 * @param syncMode 磁盘同步策略
+	 */
+	public void setWriteBehind(int capacity, SyncMode syncMode) {
+		if (capacity < 0) throw new IllegalArgumentException("capacity must be >= 0");
+		WriteBehindQueue queue = writeQueue;
+		writeQueue = capacity > 0 ? new WriteBehindQueue(this, capacity, syncMode == null ? SyncMode.NONE : syncMode) : null;
+		if (queue != null) queue.close();
+	}
+	
+	/**
+	 * 是否开启了延迟写入
+	 * @return
+	 */
+	public boolean isWriteBehind() {
+		return writeQueue != null;
+	}
+	
+	/**
+	 * 等待延迟写入队列中的内容全部写入，并将索引日志写入磁盘
+	 */
+	public void flush() {
+		WriteBehindQueue queue = writeQueue;
+		if (queue != null) {
+			try {
+				queue.flush();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		index.flush();
+	}
+	
+	/**
+	 * 添加缓存对象，返回可等待写入完成的结果。(未开启延迟写入时直接写入)
+	 * @param key
+	 * @param value
+	 * @return 是否写入了缓存
+	 */
+	public Future<Boolean> putAsync(String key, Object value) {
+		return putAsync(key, value, 0);
+	}
+	
+	/**
+	 * 添加有效期限的缓存对象，返回可等待写入完成的结果。(未开启延迟写入时直接写入)
+	 * @param key
+	 * @param value
+	 * @param ttl 有效时长 (毫秒)，0 为永不过期
+	 * @return 是否写入了缓存
+	 */
+	public Future<Boolean> putAsync(String key, Object value, long ttl) {
+		long expire = getExpireTime(ttl);
+		WriteBehindQueue queue = writeQueue;
+		if (queue != null && !isStream(value)) {
+			try {
+				Future<Boolean> future = queue.enqueue(getCacheKey(key), key, value, expire);
+				if (future != null) return future;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		WriteBehindQueue.WriteFuture future = new WriteBehindQueue.WriteFuture();
+		future.set(write(key, value, expire, false));
+		return future;
+	}
+	
+	/**
+	 * 注册编码器，用于还原该编码器压缩的内容。({@link LzfCodec} 和 {@link DeflateCodec} 已默认注册)
+	 * @param codec
+	 */
+	public static void registerCodec(CacheCodec codec) {
+		int id = codec.getId();
+		if (id < 1 || id > 255) throw new IllegalArgumentException("codec id out of range: " + id);
+		sCodecs.put(id, codec);
+	}
+	
+	/**
+	 * 设置写入文本和流内容时使用的编码器。写入前先试压缩一部分内容，压缩效果不明显或已是压缩格式 (图片、压缩包等) 时直接保存原始内容；
+	 * 读取文本和输入流时自动还原，以文件方式读取时先还原为独立的缓存文件。
+	 * @param codec 编码器，为 null 时不压缩 (已压缩的内容仍可读取)
+	 * @param minLength 不压缩短于该长度的内容
+	 */
+	public void setCompression(CacheCodec codec, int minLength) {
+		if (codec != null) registerCodec(codec);
+		this.compressThreshold = minLength;
+		this.codec = codec;
+	}
+	
+	/**
+	 * 判断是否为流式内容 (只能读取一次，不进入延迟写入队列)
+	 * @param value
+	 * @return
+	 */
+	private static boolean isStream(Object value) {
+		return value instanceof InputStream || value instanceof ReadableByteChannel;
+	}
+	
+	private static long getExpireTime(long ttl) {
+		return ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+	}
+	
+	/**
+	 * 立即写入该键在延迟写入队列中的内容
+	 * @param name 缓存文件名
+	 */
+	private void writePending(String name) {
+		WriteBehindQueue queue = writeQueue;
+		if (queue == null) return;
+		WriteBehindQueue.PendingWrite pending = queue.claim(name);
+		if (pending != null) pending.complete(write(pending.key, pending.value, pending.expire, false));
+	}
+	
+	/**
+	 * 将写入的缓存文件、段文件和索引日志同步到磁盘
+	 * @param batch 一批写入
+	 * @param syncFiles 是否同步缓存文件 (每个文件写入时未同步的情况)
+	 */
+	void sync(List<WriteBehindQueue.PendingWrite> batch, boolean syncFiles) {
+		if (syncFiles) {
+			for (WriteBehindQueue.PendingWrite write : batch) {
+				syncFile(getKeyFile(write.name));
+			}
+		}
+		pack.sync();
+		index.sync();
+	}
+	
+	private static void syncFile(File f) {
+		if (!f.isFile()) return;
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(f, true);
+			fos.getFD().sync();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			closeStream(fos);
+		}
+	}
+	
+	/**
+	 * 判断缓存文件或打包存储的内容是否存在
+	 * @param f 缓存文件
+	 * @return
+	 */
+	private boolean exists(File f) {
+		if (f.exists()) return true;
+		FileCacheIndex.Entry entry = index.get(f.getName());
+		return entry != null && entry.isPacked();
 	}
 	
 	@Override
 	public boolean contains(String key) {
 		File f = getCacheFile(key);
-		return f.exists();
+		if (index.isExpired(f.getName(), System.currentTimeMillis())) return false;
+		if (exists(f)) return true;
+		WriteBehindQueue queue = writeQueue;
+		if (queue != null && queue.peek(f.getName()) != null) return true;
+		return migrating && index.contains(CACHE_FILE_PREFIX + key.hashCode() + CACHE_FILE_SUFFIX);
 	}
 
 	@Override
 	public void put(String key, Object value) {
+		put(key, value, 0);
+	}
+	
+	/**
+	 * 添加有效期限的缓存对象。过期后的缓存视为不存在，并由后台线程分批删除。
+	 * @param key
+	 * @param value
+	 * @param ttl 有效时长 (毫秒)，0 为永不过期
+	 */
+	public void put(String key, Object value, long ttl) {
+		long expire = getExpireTime(ttl);
+		WriteBehindQueue queue = writeQueue;
+		if (queue != null && !isStream(value)) {
+			try {
+				if (queue.enqueue(getCacheKey(key), key, value, expire) != null) return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		write(key, value, expire, false);
+	}
+	
+	/**
+	 * 写入缓存内容
+	 * @param key
+	 * @param value
+	 * @param expire 过期时间，0 为永不过期
+	 * @param sync 是否在写入后同步到磁盘
+	 * @return 是否写入了缓存
+	 */
+	boolean write(String key, Object value, long expire, boolean sync) {
 		File f = getCacheFile(key);
-		if (value instanceof File)
-			fileChannelCopy((File) value, f);
-		else if (value instanceof Bitmap)
-			putBitmap(key, (Bitmap) value);
-		else if (value instanceof InputStream)
-			putStream(key, (InputStream) value);
-		else
-			putString(key, value.toString());
+		boolean written;
+		synchronized (getLock(f.getName())) {
+			migrateLegacyFile(key, f);
+			removeIfExpired(f);
+			if (value instanceof File) {
+				written = fileChannelCopy((File) value, f, sync);
+				if (written) recordFile(f, expire);
+			}
+			else if (value instanceof Bitmap)
+				written = putBitmap(key, (Bitmap) value, expire, sync);
+			else if (value instanceof InputStream)
+				written = putStream(key, (InputStream) value, expire, sync);
+			else if (value instanceof byte[])
+				written = putStream(key, new ByteArrayInputStream((byte[]) value), expire, sync);
+			else if (value instanceof ReadableByteChannel)
+				written = putChannel(key, (ReadableByteChannel) value, expire, sync);
+			else
+				written = putString(key, value.toString(), expire, sync);
+		}
 		
-		checkSize();
+		if (written) {
+			checkSize();
+			if (expire != 0) scheduleSweep(expire);
+		}
+		return written;
+	}
+	
+	/**
+	 * 缓存已过期时将其删除
+	 * @param f 缓存文件
+	 * @return 是否已过期
+	 */
+	private boolean removeIfExpired(File f) {
+		String name = f.getName();
+		if (!index.isExpired(name, System.currentTimeMillis())) return false;
+		synchronized (getLock(name)) {
+			if (!index.isExpired(name, System.currentTimeMillis())) return false;
+			FileCacheIndex.Entry entry = index.remove(name);
+			if (entry != null && entry.isPacked()) releasePacked(entry);
+			else f.delete();
+		}
+		return true;
 	}
 
 	@Override
 	public File get(String key) {
 		File f = getCacheFile(key);
-		if (f.isFile()) {
-			hits++;
-			//修改文件时间用于使最近使用的缓存文件保持优先
-			f.setLastModified(System.currentTimeMillis());
-			return f;
+		String name = f.getName();
+		writePending(name);
+		if (removeIfExpired(f)) return null;
+		return resolve(key, f) ? f : null;
+	}
+	
+	/**
+	 * 确认缓存文件可以直接读取
+	 * @param key 网络或本地的文件路径
+	 * @param f 缓存文件
+	 * @return 是否命中
+	 */
+	private boolean resolve(String key, File f) {
+		String name = f.getName();
+		//写入者在键锁内记录编码并替换文件，因此编码和文件要在同一个锁内检查；压缩的内容先还原为独立的缓存文件
+		synchronized (getLock(name)) {
+			migrateLegacyFile(key, f);
+			if ((index.getCodec(name) == 0 && f.isFile()) || unpack(f)) {
+				recordHit(f);
+				return true;
+			}
+			//读取失败时删除索引条目及其内容 (与过期删除相同)，打包存储的内容从段文件中释放
+			FileCacheIndex.Entry entry = index.remove(name);
+			if (entry != null && entry.isPacked()) releasePacked(entry);
+			else f.delete();
+		}
+		return false;
+	}
+	
+	private void recordHit(File f) {
+		hits.incrementAndGet();
+		//只在内存中更新访问顺序，不再修改文件时间
+		if (touch(f.getName())) return;
+		index.put(f.getName(), f.length());
+	}
+	
+	/**
+	 * 记录一次访问，并安排稍后将访问顺序写入日志
+	 * @param name 缓存文件名
+	 * @return 索引中是否存在该缓存
+	 */
+	private boolean touch(String name) {
+		if (!index.touch(name)) return false;
+		if (checkpointPending.compareAndSet(false, true)) {
+			getExecutor().schedule(checkpointTask, CHECKPOINT_DELAY, TimeUnit.MILLISECONDS);
+		}
+		return true;
+	}
+	
+	/**
+	 * 取得缓存的文本内容 (包括打包存储的内容)，不存在时返回 null。
+	 * @param key 网络或本地的文件路径
+	 * @return
+	 */
+	public String getString(String key) {
+		File f = getCacheFile(key);
+		WriteBehindQueue queue = writeQueue;
+		if (queue != null) {
+			Object value = queue.peek(f.getName());
+			//已存在的缓存不会被覆盖，此时队列中的内容不会写入
+			if (value instanceof String && !exists(f)) {
+				hits.incrementAndGet();
+				return (String) value;
+			}
+			if (value != null) writePending(f.getName());
+		}
+		if (removeIfExpired(f)) return null;
+		byte[] data = null;
+		FileCacheIndex.Entry entry = index.get(f.getName());
+		if (entry != null && (entry.isPacked() || entry.codec != 0)) {
+			data = readDecoded(entry);
+			if (data != null) {
+				hits.incrementAndGet();
+				touch(entry.key);
+			}
+		} else {
+			FileChannel channel = openChannel(key);
+			if (channel == null) return null;
+			try {
+				ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+				while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+				data = buffer.array();
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				closeStream(channel);
+			}
+		}
+		if (data == null) return null;
+		
+		try {
+			return new String(data, CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			return new String(data);
+		}
+	}
+	
+	/**
+	 * 将打包存储或压缩的内容还原为独立的缓存文件
+	 * @param f 缓存文件
+	 * @return 是否已转存
+	 */
+	private boolean unpack(File f) {
+		String name = f.getName();
+		FileCacheIndex.Entry entry = index.get(name);
+		if (entry == null || (!entry.isPacked() && entry.codec == 0)) return false;
+		synchronized (getLock(name)) {
+			entry = index.get(name);
+			if (entry == null || (!entry.isPacked() && entry.codec == 0)) return f.isFile();
+			byte[] data = readDecoded(entry);
+			if (data == null || !writeStreamToFile(f, new ByteArrayInputStream(data))) return false;
+			recordFile(f, entry.expire);
+			return true;
+		}
+	}
+	
+	/**
+	 * 读取并还原条目的内容 (包括打包存储和压缩的内容)
+	 * @param entry
+	 * @return 读取失败时返回 null
+	 */
+	private byte[] readDecoded(FileCacheIndex.Entry entry) {
+		for (int i = 0; i < 2 && entry != null; i++) {
+			try {
+				byte[] data = entry.isPacked()
+						? pack.read(entry.segment, entry.offset, (int) entry.length)
+						: readFile(getKeyFile(entry.key));
+				return entry.codec == 0 ? data : decode(data);
+			} catch (IOException e) {
+				entry = index.get(entry.key); //可能已被后台整理移动或已还原
+			}
 		}
 		return null;
 	}
+	
+	/**
+	 * 压缩内容。内容过短、已是压缩格式或试压缩效果不明显时返回 null。
+	 * @param data
+	 * @return 带有头部 (编码器编号 + 原始长度) 的压缩内容
+	 */
+	private byte[] encode(byte[] data) {
+		CacheCodec codec = this.codec;
+		if (codec == null || data.length < compressThreshold || data.length < CODEC_HEADER_LENGTH) return null;
+		if (isCompressedFormat(data)) return null;
+		if (data.length > COMPRESS_PROBE_LENGTH * 2) {
+			byte[] probe = codec.encode(data, 0, COMPRESS_PROBE_LENGTH);
+			if (probe.length > COMPRESS_PROBE_LENGTH * COMPRESS_MIN_RATIO) return null;
+		}
+		byte[] encoded = codec.encode(data, 0, data.length);
+		if (CODEC_HEADER_LENGTH + encoded.length > data.length * COMPRESS_MIN_RATIO) return null;
+		
+		byte[] result = new byte[CODEC_HEADER_LENGTH + encoded.length];
+		ByteBuffer.wrap(result).put((byte) codec.getId()).putInt(data.length);
+		System.arraycopy(encoded, 0, result, CODEC_HEADER_LENGTH, encoded.length);
+		return result;
+	}
+	
+	/**
+	 * 还原带有头部的压缩内容
+	 * @param data
+	 * @return
+	 * @throws IOException 编码器未注册或内容损坏时
+	 */
+	private static byte[] decode(byte[] data) throws IOException {
+		if (data.length < CODEC_HEADER_LENGTH) throw new IOException("codec header truncated");
+		ByteBuffer header = ByteBuffer.wrap(data);
+		int id = header.get() & 0xff;
+		int length = header.getInt();
+		CacheCodec codec = sCodecs.get(id);
+		if (codec == null) throw new IOException("codec not registered: " + id);
+		return codec.decode(data, CODEC_HEADER_LENGTH, data.length - CODEC_HEADER_LENGTH, length);
+	}
+	
+	/**
+	 * 根据文件头判断内容是否已是压缩格式 (JPEG、PNG、GIF、WebP、GZIP、ZIP)
+	 * @param data
+	 * @return
+	 */
+	private static boolean isCompressedFormat(byte[] data) {
+		int b0 = data[0] & 0xff, b1 = data[1] & 0xff, b2 = data[2] & 0xff, b3 = data[3] & 0xff;
+		return (b0 == 0xff && b1 == 0xd8) //JPEG
+				|| (b0 == 0x89 && b1 == 'P' && b2 == 'N' && b3 == 'G')
+				|| (b0 == 'G' && b1 == 'I' && b2 == 'F')
+				|| (b0 == 'R' && b1 == 'I' && b2 == 'F' && b3 == 'F') //WebP
+				|| (b0 == 0x1f && b1 == 0x8b) //GZIP
+				|| (b0 == 'P' && b1 == 'K' && b2 == 3 && b3 == 4); //ZIP
+	}
+	
+	/**
+	 * 以压缩格式写入缓存文件 (在键锁内调用)。读取者在键锁内检查编码和文件，不会把压缩内容当作原始内容。
+	 * @param f 缓存文件
+	 * @param encoded 带有头部的压缩内容
+	 * @param expire 过期时间，0 为永不过期
+	 * @param sync 是否在写入后同步到磁盘
+	 * @return 是否写入了缓存文件
+	 */
+	private boolean writeEncoded(File f, byte[] encoded, long expire, boolean sync) {
+		File tmp = null;
+		FileOutputStream fos = null;
+		boolean result = false;
+		try {
+			tmp = createTempFile(f);
+			fos = new FileOutputStream(tmp);
+			fos.write(encoded);
+			if (sync) fos.getFD().sync();
+			result = true;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			closeStream(fos);
+		}
+		
+		if (tmp == null) return false;
+		if (!result) {
+			tmp.delete();
+			return false;
+		}
+		releasePacked(index.put(f.getName(), encoded.length, -1, 0, expire, encoded[0] & 0xff));
+		if (commitTempFile(tmp, f)) return true;
+		index.remove(f.getName());
+		return false;
+	}
+	
+	/**
+	 * 读取文件的全部内容
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 */
+	private static byte[] readFile(File f) throws IOException {
+		FileInputStream fis = new FileInputStream(f);
+		try {
+			FileChannel channel = fis.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+			return buffer.array();
+		} finally {
+			closeStream(fis);
+		}
+	}
+	
+	/**
+	 * 打开缓存文件的只读通道，不存在时返回 null。(使用完毕后由调用者关闭)
+	 * <br>缓存文件以整体替换的方式写入，通道打开后即使该缓存被清理或重新写入，读到的仍是打开时的完整内容。
+	 * @param key 网络或本地的文件路径
+	 * @return
+	 */
+	public FileChannel openChannel(String key) {
+		File f = getCacheFile(key);
+		String name = f.getName();
+		writePending(name);
+		if (removeIfExpired(f)) return null;
+		FileInputStream fis;
+		//与 get 相同，在键锁内检查编码并打开文件，打开的文件不会是尚未记录编码的压缩内容
+		synchronized (getLock(name)) {
+			migrateLegacyFile(key, f);
+			fis = index.getCodec(name) == 0 ? openFile(f) : null;
+			if (fis == null && unpack(f)) fis = openFile(f);
+			if (fis == null) {
+				FileCacheIndex.Entry entry = index.remove(name);
+				if (entry != null && entry.isPacked()) releasePacked(entry);
+				else f.delete();
+				return null;
+			}
+		}
+		recordHit(f);
+		return fis.getChannel();
+	}
+	
+	private static FileInputStream openFile(File f) {
+		try {
+			return new FileInputStream(f);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * 打开缓存内容的输入流，不存在时返回 null。(使用完毕后由调用者关闭)
+	 * <br>该缓存正在以流的方式写入时，返回的输入流跟随写入进度读取，读到已写入的末尾时等待后续内容；
+	 * 写入失败时读取会抛出 {@link IOException}。
+	 * @param key 网络或本地的文件路径
+	 * @return
+	 */
+	public InputStream openStream(String key) {
+		String name = getCacheKey(key);
+		StreamingWrite write = streaming.get(name);
+		if (write != null) {
+			InputStream is = write.openStream();
+			if (is != null) {
+				hits.incrementAndGet();
+				return is;
+			}
+		}
+		writePending(name);
+		if (removeIfExpired(getKeyFile(name))) return null;
+		FileCacheIndex.Entry entry = index.get(name);
+		if (entry != null && entry.codec != 0) {
+			byte[] data = readDecoded(entry);
+			if (data != null) {
+				hits.incrementAndGet();
+				touch(name);
+				return new ByteArrayInputStream(data);
+			}
+		}
+		FileChannel channel = openChannel(key);
+		return channel == null ? null : Channels.newInputStream(channel);
+	}
+	
+	/**
+	 * 以只读内存映射的方式取得缓存内容，不存在时返回 null。
+	 * <br>读取时不需要复制到堆内存；映射与文件通道无关，缓存被清理或重新写入后仍然有效，直至被回收。
+	 * @param key 网络或本地的文件路径
+	 * @return
+	 */
+	public MappedByteBuffer getBuffer(String key) {
+		String name = getCacheKey(key);
+		writePending(name);
+		if (removeIfExpired(getKeyFile(name))) return null;
+		FileCacheIndex.Entry entry = index.get(name);
+		for (int i = 0; i < 2 && entry != null && entry.isPacked() && entry.codec == 0; i++) {
+			try {
+				MappedByteBuffer buffer = pack.map(entry.segment, entry.offset, (int) entry.length);
+				hits.incrementAndGet();
+				touch(name);
+				return buffer;
+			} catch (IOException e) {
+				entry = index.get(name); //可能已被后台整理移动
+			}
+		}
+		
+		FileChannel channel = openChannel(key);
+		if (channel == null) return null;
+		try {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			closeStream(channel);
+		}
+	}
 
 	@Override
 	public File remove(String key) {
 		File f = getCacheFile(key);
-		if (f.isFile() && f.delete()) return f;
+		WriteBehindQueue queue = writeQueue;
+		if (queue != null) queue.discard(f.getName());
+		synchronized (getLock(f.getName())) {
+			migrateLegacyFile(key, f);
+			FileCacheIndex.Entry entry = index.remove(f.getName());
+			releasePacked(entry);
+			if (f.isFile() && f.delete()) return f;
+			if (entry != null && entry.isPacked()) return f;
+		}
 		return null;
 	}
 
+	/**
+	 * 批量获取缓存文件。先在索引中一次查出存在且未过期的条目，只对这些条目检查文件；
+	 * 不在索引中的键直接视为未命中，已过期的条目留给后台清理。
+	 */
 	@Override
-	public int size() {
-		int length = 0;
-		File[] files = cacheDir.listFiles();
-		if (files == null) return 0;
-		for (File f : files) {
-			if (f.isFile()) length++;
+	public Map<String, File> getAll(Collection<String> keys) {
+		Map<String, File> files = new LinkedHashMap<String, File>();
+		for (String key : keys) {
+			if (key == null || files.containsKey(key)) continue;
+			File f = getCacheFile(key);
+			writePending(f.getName());
+			files.put(key, f);
+		}
+		List<String> names = new ArrayList<String>(files.size());
+		for (File f : files.values()) names.add(f.getName());
+		Set<String> live = index.getLive(names, System.currentTimeMillis());
+		
+		Map<String, File> values = new LinkedHashMap<String, File>();
+		for (Map.Entry<String, File> e : files.entrySet()) {
+			String key = e.getKey();
+			File f = e.getValue();
+			if (live.contains(f.getName())) {
+				if (resolve(key, f)) values.put(key, f);
+			} else if (migrating) {
+				//旧版本的缓存文件不在新键名下，逐个迁移
+				f = get(key);
+				if (f != null) values.put(key, f);
+			}
+		}
+		return values;
+	}
+	
+	/**
+	 * 批量添加缓存对象。开启延迟写入时全部加入队列；否则逐个写入，索引日志在全部写入后一次写入磁盘。
+	 */
+	@Override
+	public void putAll(Map<String, ?> values) {
+		WriteBehindQueue queue = writeQueue;
+		index.beginBatch();
+		try {
+			for (Map.Entry<String, ?> e : values.entrySet()) {
+				String key = e.getKey();
+				Object value = e.getValue();
+				if (key == null || value == null) continue;
+				if (queue != null && !isStream(value)) {
+					try {
+						if (queue.enqueue(getCacheKey(key), key, value, 0) != null) continue;
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				write(key, value, 0, false);
+			}
+		} finally {
+			index.endBatch();
+		}
+	}
+	
+	/**
+	 * 批量移除缓存对象，索引日志在全部移除后一次写入磁盘
+	 */
+	@Override
+	public Map<String, File> removeAll(Collection<String> keys) {
+		Map<String, File> values = new LinkedHashMap<String, File>();
+		index.beginBatch();
+		try {
+			for (String key : keys) {
+				if (key == null) continue;
+				File f = remove(key);
+				if (f != null) values.put(key, f);
+			}
+		} finally {
+			index.endBatch();
 		}
-		return length;
+		return values;
+	}
+
+	@Override
+	public int size() {
+		return index.size();
 	}
 
 	@Override
 	public void trimToSize(int size) {
-		List<File> fileList = getSortedCacheFileList();
-		if (fileList == null) return;
-		
-		for (File f : fileList) {
-			if (size() > size) f.delete();
-		}
+		if (size < 0) return;
+		evict(-1, size);
 		
 	}
 
 	@Override
 	public void clear() {
+		WriteBehindQueue queue = writeQueue;
+		if (queue != null) queue.clear();
+		pack.clear();
 		File[] files = cacheDir.listFiles();
-		if (files == null) return;
-		for (File f : files) {
-			if (f.isFile()) f.delete();
+		if (files != null) {
+			for (File f : files) {
+				if (f.isDirectory()) deleteDirectory(f);
+				else if (!FileCacheIndex.isIndexFile(f.getName())) f.delete();
+			}
 		}
+		index.clear();
+		migrating = false;
 		
 	}
 	
+	private static void deleteDirectory(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (f.isDirectory()) deleteDirectory(f);
+				else f.delete();
+			}
+		}
+		dir.delete();
+	}
+	
+	/**
+	 * 写入延迟写入队列中的内容，停止后台清理，将索引日志写入磁盘并关闭
+	 */
+	public void close() {
+		WriteBehindQueue queue = writeQueue;
+		writeQueue = null;
+		if (queue != null) queue.close();
+		synchronized (this) {
+			if (executor != null) executor.shutdown();
+			executor = null;
+			nextSweepTime = 0;
+			checkpointPending.set(false);
+		}
+		index.close();
+		pack.close();
+	}
+	
 	/**
 	 * 返回 {@link #get(String)} 次数
 	 * @return
 	 */
 	public int getHits() {
-		return hits;
+		return hits.get();
+	}
+	
+	/**
+	 * 设置缓存文件的最大总大小 (默认为缓存目录可用空间减去保留空间)
+	 * @param maxSize
+	 */
+	public void setMaxSize(long maxSize) {
+		if (maxSize <= 0) throw new IllegalArgumentException("size must be > 0");
+		this.maxSize = maxSize;
+		checkSize();
 	}
 
 	/**
-	 * 将图片缓存入文件。(缓存文件存在时将不保存)
+	 * 将图片缓存入文件，有透明通道或地址以 .png 结尾时保存为 PNG，否则为 JPEG。(缓存文件存在时将不保存)
 	 * @param url 图片的请求地址
 	 * @param bitmap 图片
+	 * @param expire 过期时间，0 为永不过期
+	 * @param sync 是否在写入后同步到磁盘
+	 * @return 是否写入了缓存文件
 	 */
-	private void putBitmap(String url, Bitmap bitmap) {
-		if (TextUtils.isEmpty(url) || bitmap == null) return;
+	private boolean putBitmap(String url, Bitmap bitmap, long expire, boolean sync) {
+		if (TextUtils.isEmpty(url) || bitmap == null) return false;
 		
 		Bitmap.CompressFormat cf = null;
-		if (url.toLowerCase(Locale.getDefault()).endsWith(".png"))
+		//有透明通道的图像 (如转存的内存图像，键没有扩展名) 保存为 JPEG 会丢失透明度
+		if (bitmap.hasAlpha() || url.toLowerCase(Locale.getDefault()).endsWith(".png"))
 			cf = Bitmap.CompressFormat.PNG;
 		else
 			cf = Bitmap.CompressFormat.JPEG;
 		
 		File f = getCacheFile(url);
-		if (f.exists() || isLocalFile(url)) return;
+		if (exists(f) || isLocalFile(url)) return false;
 		
-		writeBitmapToFile(f, bitmap, cf);
+		if (!writeBitmapToFile(f, bitmap, cf, sync)) return false;
+		recordFile(f, expire);
+		return true;
 	}
 	
 	/**
 	 * 将输入流内容缓存入文件。(缓存文件存在时将不写入)
 	 * @param url 输入流的请求地址
 	 * @param is 输入流
+	 * @param expire 过期时间，0 为永不过期
+	 * @param sync 是否在写入后同步到磁盘
+	 * @return 是否写入了缓存文件
+	 */
+	private boolean putStream(String url, InputStream is, long expire, boolean sync) {
+		//文件输入流直接使用文件通道，以便通过 transferFrom 拷贝
+		ReadableByteChannel channel = is instanceof FileInputStream
+				? ((FileInputStream) is).getChannel() : Channels.newChannel(is);
+		return putChannel(url, channel, expire, sync);
+	}
+	
+	/**
+	 * 写入通道内容到缓存。写入期间同一个键的读取者可以通过 {@link #openStream(String)}
+	 * 跟随写入进度读取，全部写入成功后才替换为缓存文件。
+	 * @param url
+	 * @param src
+	 * @param expire 过期时间，0 为永不过期
+	 * @param sync 是否在写入后同步到磁盘
+	 * @return 是否写入了缓存文件
 	 */
-	private void putStream(String url, InputStream is) {
+	private boolean putChannel(String url, ReadableByteChannel src, long expire, boolean sync) {
 		File f = getCacheFile(url);
-		if (f.exists() || isLocalFile(url)) return;
+		if (exists(f) || isLocalFile(url)) {
+			closeStream(src);
+			return false;
+		}
+		
+		File tmp;
+		try {
+			tmp = createTempFile(f);
+		} catch (IOException e) {
+			e.printStackTrace();
+			closeStream(src);
+			return false;
+		}
+		StreamingWrite write = new StreamingWrite(tmp);
+		streaming.put(f.getName(), write);
+		
+		boolean result = false;
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(tmp);
+			FileChannel out = fos.getChannel();
+			write.transfer(src, out);
+			if (sync) out.force(true);
+			result = true;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			closeStream(fos);
+			closeStream(src);
+		}
+		
+		byte[] encoded = null;
+		if (result && codec != null && tmp.length() <= COMPRESS_MAX_STREAM_LENGTH) {
+			try {
+				encoded = encode(readFile(tmp));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 		
-		writeStreamToFile(f, is);
+		if (encoded != null) {
+			result = writeEncoded(f, encoded, expire, sync);
+			tmp.delete();
+		} else if (result) {
+			result = commitTempFile(tmp, f);
+			if (result) recordFile(f, expire);
+		} else {
+			tmp.delete();
+		}
+		streaming.remove(f.getName());
+		write.finish(result);
+		return result;
 	}
 
 	/**
 	 * 将文本内容缓存至文件。(缓存文件存在时将不写入)
 	 * @param url 输入流的请求地址
 	 * @param text 文本
+	 * @param expire 过期时间，0 为永不过期
+	 * @param sync 是否在写入后同步到磁盘
+	 * @return 是否写入了缓存文件
 	 */
-	private void putString(String url, String text) {
+	private boolean putString(String url, String text, long expire, boolean sync) {
 		File f = getCacheFile(url);
-		if (f.exists() || isLocalFile(url)) return;
+		if (exists(f) || isLocalFile(url)) return false;
+		
+		byte[] data = null;
+		int codecId = 0;
+		boolean packable = packThreshold > 0 && text.length() <= packThreshold;
+		if (!TextUtils.isEmpty(text) && (packable || codec != null)) {
+			try {
+				data = text.getBytes(CHARSET);
+			} catch (UnsupportedEncodingException e) {
+				data = text.getBytes();
+			}
+			byte[] encoded = encode(data);
+			if (encoded != null) {
+				data = encoded;
+				codecId = encoded[0] & 0xff;
+			}
+		}
+		
+		if (data != null && packThreshold > 0 && data.length <= packThreshold) {
+			try {
+				FilePackStore.Location location = pack.append(data);
+				releasePacked(index.put(f.getName(), data.length, location.segment, location.offset, expire, codecId));
+				return true;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		if (codecId != 0) return writeEncoded(f, data, expire, sync);
 		
-		writeTextToFile(context, f, text, CHARSET);
+		if (!writeTextToFile(context, f, text, CHARSET, sync)) return false;
+		recordFile(f, expire);
+		return true;
+	}
+	
+	/**
+	 * 在索引中记录写入完成的缓存文件
+	 * @param f 缓存文件
+	 * @param expire 过期时间，0 为永不过期
+	 */
+	private void recordFile(File f, long expire) {
+		releasePacked(index.put(f.getName(), f.length(), -1, 0, expire, 0));
+	}
+	
+	/**
+	 * 释放被删除或替换的打包存储内容所占的空间
+	 * @param entry 被删除或替换的条目
+	 */
+	private void releasePacked(FileCacheIndex.Entry entry) {
+		if (entry == null || !entry.isPacked()) return;
+		if (pack.release(entry.segment, entry.length)) {
+			if (compactionPending.compareAndSet(false, true)) execute(compactionTask);
+		}
+	}
+	
+	/**
+	 * 整理段文件：将有效内容移动到当前段文件后删除旧的段文件
+	 */
+	private void compactPacks() {
+		for (int segment : pack.getCompactionCandidates()) {
+			for (FileCacheIndex.Entry entry : index.getPackedEntries(segment)) {
+				synchronized (getLock(entry.key)) {
+					try {
+						byte[] data = pack.read(entry.segment, entry.offset, (int) entry.length);
+						FilePackStore.Location location = pack.append(data);
+						if (!index.movePacked(entry.key, entry.segment, entry.offset, location.segment, location.offset))
+							pack.release(location.segment, data.length); //期间已被删除或替换
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+			index.flush();
+			pack.delete(segment);
+		}
 	}
 
 	/**
@@ -230,56 +1256,108 @@ public class FileCache implements Cacheable<File> {
 	}
 
 	/**
-	 * 返回所有缓存文件的总大小。
+	 * 返回所有缓存文件的总大小。(由索引累计，不遍历缓存目录)
 	 * @return
 	 */
 	protected long getSize() {
-		long size = 0;
-		File[] files = cacheDir.listFiles();
-		if (files == null) return 0;
-		for (File f : files) {
-			if (f.isFile()) {
-				size += sizeOf(f);
-			}
-		}
-		return size;
+		return index.getTotalSize();
 	}
 	
+	/**
+	 * 超出大小限制时在后台线程中清理，调用者不必等待文件删除
+	 */
 	private void checkSize() {
-		if (getSize() <= maxSize) return;
-		List<File> fileList = getSortedCacheFileList();
-		if (fileList == null) return;
-		for (File f : fileList) {
-			if (getSize() > maxSize) f.delete();
-			else break;
+		if (index.getTotalSize() <= maxSize) return;
+		if (!evictionPending.compareAndSet(false, true)) return; //已有待执行的清理
+		execute(evictionTask);
+	}
+	
+	/**
+	 * 在后台线程中执行任务
+	 * @param task
+	 */
+	private void execute(Runnable task) {
+		getExecutor().execute(task);
+	}
+	
+	private synchronized ScheduledExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "FileCache-worker");
+					t.setDaemon(true);
+					return t;
+				}
+				
+			});
 		}
+		return executor;
 	}
 	
 	/**
-	 * 返回以文件时间排序好的缓存文件列表
-	 * @return
+	 * 安排在指定时间后清理过期的缓存 (已安排了更早的清理时不再安排)
+	 * @param time 过期时间
 	 */
-	private List<File> getSortedCacheFileList() {
-		File[] files = cacheDir.listFiles();
-		if (files == null) return null;
-		List<File> fileList = new ArrayList<File>(); //Arrays.asList(files);
-		for (File f : files) {
-			if (f.isFile()) fileList.add(f);
+	private synchronized void scheduleSweep(long time) {
+		if (nextSweepTime != 0 && nextSweepTime <= time) return;
+		nextSweepTime = time;
+		long delay = Math.max(time - System.currentTimeMillis(), SWEEP_DELAY);
+		getExecutor().schedule(sweepTask, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * 分批删除已过期的缓存。每次运行最多占用 {@link #SWEEP_SLICE_NANOS}，
+	 * 剩余的过期缓存在稍后继续删除，避免长时间占用磁盘。
+	 */
+	private void sweepExpired() {
+		synchronized (this) {
+			nextSweepTime = 0;
 		}
+		long deadline = System.nanoTime() + SWEEP_SLICE_NANOS;
+		List<FileCacheIndex.Entry> expired;
+		do {
+			expired = index.pollExpired(System.currentTimeMillis(), SWEEP_BATCH);
+			deleteEntries(expired);
+		} while (expired.size() == SWEEP_BATCH && System.nanoTime() < deadline);
 		
-		Collections.sort(fileList, new Comparator<File>() {
-
-			@Override
-			public int compare(File lhs, File rhs) {
-				long d = lhs.lastModified() - rhs.lastModified();
-				if (d > Integer.MAX_VALUE) d = Integer.MAX_VALUE;
-				if (d < Integer.MIN_VALUE) d = Integer.MIN_VALUE;
-				return (int) d;
+		long next = index.getNextExpireTime();
+		if (next == 0) return;
+		if (expired.size() == SWEEP_BATCH) {
+			synchronized (this) {
+				nextSweepTime = System.currentTimeMillis() + SWEEP_PAUSE;
+				getExecutor().schedule(sweepTask, SWEEP_PAUSE, TimeUnit.MILLISECONDS);
 			}
-			
-		});
-		
-		return fileList;
+		} else {
+			scheduleSweep(next);
+		}
+	}
+	
+	/**
+	 * 按最久未使用的顺序一次性清理缓存文件，直至满足大小或数量限制
+	 * @param maxBytes 最大总大小，小于 0 时不限制
+	 * @param maxCount 最大数量，小于 0 时不限制
+	 */
+	private void evict(long maxBytes, int maxCount) {
+		deleteEntries(index.evict(maxBytes, maxCount));
+	}
+	
+	/**
+	 * 删除已从索引中移除的条目对应的缓存文件或打包内容
+	 * @param entries
+	 */
+	private void deleteEntries(List<FileCacheIndex.Entry> entries) {
+		for (FileCacheIndex.Entry entry : entries) {
+			if (entry.isPacked()) {
+				releasePacked(entry);
+				continue;
+			}
+			synchronized (getLock(entry.key)) {
+				//清理期间可能已被重新写入
+				if (!index.contains(entry.key)) getKeyFile(entry.key).delete();
+			}
+		}
 	}
 	
 	/**
@@ -292,6 +1370,33 @@ public class FileCache implements Cacheable<File> {
 		return f.exists();
 	}
 	
+	/**
+	 * 在目标文件所在目录创建写入用的临时文件
+	 * @param file 目标文件
+	 * @return
+	 * @throws IOException
+	 */
+	private static File createTempFile(File file) throws IOException {
+		File dir = file.getParentFile();
+		if (dir != null && !dir.exists()) dir.mkdirs();
+		return File.createTempFile(file.getName(), FileCacheIndex.TEMP_SUFFIX, dir);
+	}
+	
+	/**
+	 * 将写入完成的临时文件原子地替换为目标文件，读取者不会看到写入一半的文件
+	 * @param tmp 临时文件
+	 * @param file 目标文件
+	 * @return 是否成功
+	 */
+	private static boolean commitTempFile(File tmp, File file) {
+		if (tmp.renameTo(file)) return true;
+		//部分文件系统不允许覆盖已存在的文件
+		file.delete();
+		if (tmp.renameTo(file)) return true;
+		tmp.delete();
+		return false;
+	}
+	
 	/**
 	 * 文件通道拷贝方法
 	 * @param s 源文件
@@ -299,36 +1404,48 @@ public class FileCache implements Cacheable<File> {
 	 * @return
 	 */
 	public static boolean fileChannelCopy(File s, File t) {
+		return fileChannelCopy(s, t, false);
+	}
+	
+	private static boolean fileChannelCopy(File s, File t, boolean sync) {
 		if (s == null || t == null) return false;
 		if (s.equals(t)) return true;
 		FileInputStream fi = null;
 		FileOutputStream fo = null;
 		FileChannel in = null;
 		FileChannel out = null;
+		File tmp = null;
+		boolean result = false;
 		long st = s.lastModified();
 		try {
+			tmp = createTempFile(t);
 			fi = new FileInputStream(s);
-			fo = new FileOutputStream(t);
+			fo = new FileOutputStream(tmp);
 			in = fi.getChannel();
 			out = fo.getChannel();
-			in.transferTo(0, in.size(), out);
-			t.setLastModified(st);
-			return true;
+			long size = in.size();
+			long position = 0;
+			while (position < size) {
+				position += in.transferTo(position, size - position, out);
+			}
+			if (sync) out.force(true);
+			result = true;
 		} catch (Exception e) {
 			e.printStackTrace();
 		} finally {
-			try {
-				fi.close();
-				in.close();
-				fo.close();
-				out.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
+			closeStream(in);
+			closeStream(fi);
+			closeStream(out);
+			closeStream(fo);
 		}
-		return false;
+		
+		if (tmp == null) return false;
+		if (!result) {
+			tmp.delete();
+			return false;
+		}
+		tmp.setLastModified(st);
+		return commitTempFile(tmp, t);
 		
 	}
 	
@@ -340,31 +1457,37 @@ public class FileCache implements Cacheable<File> {
 	 * @return 是否写入成功
 	 */
 	public static boolean writeBitmapToFile(File file, Bitmap bitmap, Bitmap.CompressFormat compressFormat) {
+		return writeBitmapToFile(file, bitmap, compressFormat, false);
+	}
+	
+	private static boolean writeBitmapToFile(File file, Bitmap bitmap, Bitmap.CompressFormat compressFormat, boolean sync) {
 		if (file == null || bitmap == null) return false;
 		
 		if (compressFormat == null)
 			compressFormat = Bitmap.CompressFormat.JPEG;
 		FileOutputStream fos = null;
-		
+		File tmp = null;
 		boolean result = false;
-		File dir = file.getParentFile();
-		if (dir != null && !dir.exists()) dir.mkdirs();
 		
 		try {
-			file.createNewFile();
-			if (!file.exists()) return false;
-			fos = new FileOutputStream(file);
-			bitmap.compress(compressFormat, 100, fos);
+			tmp = createTempFile(file);
+			fos = new FileOutputStream(tmp);
+			result = bitmap.compress(compressFormat, 100, fos);
 			fos.flush();
-			result = true;
+			if (sync) fos.getFD().sync();
 		} catch (Exception e) {
 			e.printStackTrace();
-			if (file.exists()) file.delete();
+			result = false;
 		} finally {
 			closeStream(fos);
 		}
 		
-		return result;
+		if (tmp == null) return false;
+		if (!result) {
+			tmp.delete();
+			return false;
+		}
+		return commitTempFile(tmp, file);
 	}
 
 	/**
@@ -374,33 +1497,39 @@ public class FileCache implements Cacheable<File> {
 	 * @return 是否写入成功
 	 */
 	public static boolean writeStreamToFile(File file, InputStream inputStream) {
+		return writeStreamToFile(file, inputStream, false);
+	}
+	
+	private static boolean writeStreamToFile(File file, InputStream inputStream, boolean sync) {
 		if (file == null || inputStream == null) return false;
 		
 		boolean result = false;
-		File dir = file.getParentFile();
-		if (dir != null && !dir.exists()) dir.mkdirs();
-		
 		FileOutputStream fos = null;
+		File tmp = null;
 		byte[] buffer = new byte[4096];
 		int len = 0;
 		try {
-			file.createNewFile();
-			if (!file.exists()) return false;
-			fos = new FileOutputStream(file);
+			tmp = createTempFile(file);
+			fos = new FileOutputStream(tmp);
 			while ((len = inputStream.read(buffer)) != -1) {
 				fos.write(buffer, 0, len);
 			}
 			fos.flush();
+			if (sync) fos.getFD().sync();
 			result = true;
 		} catch (IOException e) {
 			e.printStackTrace();
-			if (file.exists()) file.delete();
 		} finally {
 			closeStream(fos);
 			closeStream(inputStream);
 		}
 		
-		return result;
+		if (tmp == null) return false;
+		if (!result) {
+			tmp.delete();
+			return false;
+		}
+		return commitTempFile(tmp, file);
 	}
 
 	/**
@@ -412,30 +1541,37 @@ public class FileCache implements Cacheable<File> {
 	 * @return 是否写入成功
 	 */
 	public static boolean writeTextToFile(Context context, File file, String text, String charset) {
+		return writeTextToFile(context, file, text, charset, false);
+	}
+	
+	private static boolean writeTextToFile(Context context, File file, String text, String charset, boolean sync) {
 		if (context == null || file == null) return false;
 		if (TextUtils.isEmpty(text)) return false;
 		if (TextUtils.isEmpty(charset)) charset = "gb2312";
 		
 		boolean result = false;
-		File dir = file.getParentFile();
-		if (dir != null && !dir.exists()) dir.mkdirs();
-		
 		FileOutputStream outputStream = null;
+		File tmp = null;
 		try {
-			file.createNewFile();
-			if (!file.exists()) return false;
-			outputStream = context.openFileOutput(file.getAbsolutePath(), Context.MODE_PRIVATE);
+			tmp = createTempFile(file);
+			//openFileOutput 不接受带路径分隔符的文件名，直接写入临时文件
+			outputStream = new FileOutputStream(tmp);
 			outputStream.write(text.getBytes(charset));
 			outputStream.flush();
+			if (sync) outputStream.getFD().sync();
 			result = true;
 		} catch (Exception e) {
 			e.printStackTrace();
-			if (file.exists()) file.delete();
 		} finally {
 			closeStream(outputStream);
 		}
 		
-		return result;
+		if (tmp == null) return false;
+		if (!result) {
+			tmp.delete();
+			return false;
+		}
+		return commitTempFile(tmp, file);
 	}
 	
 	/**
@@ -0,0 +1,684 @@
+package com.sunteorum.kiku.cache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * 文件缓存索引
+ * <p>在内存中保存 键 → (文件长度, 最近访问时间) 的映射并累计总大小，
+ * 所有修改以追加方式写入缓存目录下的日志文件，启动时回放日志重建索引，
+ * 从而避免在每次读写时遍历缓存目录。</p>
+ * @author KYO
+ *
+ */
+class FileCacheIndex {
+	static final String JOURNAL_FILE = ".journal"; //日志文件名
+	static final String JOURNAL_FILE_TMP = ".journal.tmp"; //重建中的日志文件名
+	static final String TEMP_SUFFIX = ".tmp"; //写入中的缓存文件后缀
+	static final String MAGIC = "kiku.cache.FileCache";
+	static final String VERSION = "1";
+
+	private static final String PUT = "PUT";
+	private static final String READ = "READ";
+	private static final String REMOVE = "REMOVE";
+	private static final String CHARSET = "UTF-8";
+	private static final int REBUILD_THRESHOLD = 2000; //冗余记录超过该数量时压缩日志
+
+	/**
+	 * 索引条目
+	 */
+	static final class Entry {
+		final String key;
+		long length;
+		long lastAccess;
+		int segment = -1; //打包存储时的段号，独立文件为 -1
+		long offset; //打包存储时在段文件中的偏移
+		long expire; //过期时间，0 为永不过期
+		int codec; //压缩内容的编码器编号，未压缩为 0
+
+		Entry(String key, long length, long lastAccess) {
+			this.key = key;
+			this.length = length;
+			this.lastAccess = lastAccess;
+		}
+
+		Entry(Entry entry) {
+			this(entry.key, entry.length, entry.lastAccess);
+			this.segment = entry.segment;
+			this.offset = entry.offset;
+			this.expire = entry.expire;
+			this.codec = entry.codec;
+		}
+
+		/**
+		 * 是否打包存储于段文件中
+		 * @return
+		 */
+		boolean isPacked() {
+			return segment >= 0;
+		}
+	}
+
+	/**
+	 * 过期时间队列的元素。条目被替换或删除后元素不会立即移除，取出时再与条目核对。
+	 */
+	private static final class Expiry implements Comparable<Expiry> {
+		final long time;
+		final String key;
+
+		Expiry(long time, String key) {
+			this.time = time;
+			this.key = key;
+		}
+
+		@Override
+		public int compareTo(Expiry another) {
+			return time < another.time ? -1 : (time == another.time ? 0 : 1);
+		}
+	}
+
+	private final File dir;
+	private final File journalFile;
+	private final File journalFileTmp;
+	//按访问顺序排列，迭代的第一个条目即最久未使用的条目
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+	//与 entries 内容相同，用于不改变访问顺序的查找
+	private final HashMap<String, Entry> lookup = new HashMap<String, Entry>();
+	private final PriorityQueue<Expiry> expiries = new PriorityQueue<Expiry>(); //按过期时间排序
+	//上次写入检查点后访问过的键，按访问顺序排列
+	private final LinkedHashMap<String, Boolean> touched = new LinkedHashMap<String, Boolean>(0, 0.75f, true);
+	private long totalSize = 0;
+	private int redundantOpCount = 0;
+	private int batchDepth = 0; //大于 0 时记录暂不写入磁盘，由 endBatch 统一写入
+	private Writer journalWriter;
+	private FileOutputStream journalOut;
+
+	FileCacheIndex(File dir) {
+		this.dir = dir;
+		this.journalFile = new File(dir, JOURNAL_FILE);
+		this.journalFileTmp = new File(dir, JOURNAL_FILE_TMP);
+	}
+
+	/**
+	 * 判断文件名是否为索引自身使用的文件
+	 * @param name
+	 * @return
+	 */
+	static boolean isIndexFile(String name) {
+		return JOURNAL_FILE.equals(name) || JOURNAL_FILE_TMP.equals(name);
+	}
+
+	/**
+	 * 打开索引。日志存在时回放日志，否则扫描一次缓存目录并重建日志。
+	 */
+	synchronized void open() {
+		entries.clear();
+		lookup.clear();
+		expiries.clear();
+		touched.clear();
+		totalSize = 0;
+		redundantOpCount = 0;
+		if (journalFileTmp.exists()) journalFileTmp.delete();
+
+		if (!journalFile.isFile() || !readJournal()) {
+			entries.clear();
+			lookup.clear();
+			expiries.clear();
+			totalSize = 0;
+			scanDirectory();
+			rebuildJournal();
+			return;
+		}
+
+		try {
+			openJournalWriter();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void openJournalWriter() throws IOException {
+		journalOut = new FileOutputStream(journalFile, true);
+		journalWriter = new BufferedWriter(new OutputStreamWriter(journalOut, CHARSET));
+	}
+
+	/**
+	 * 回放日志
+	 * @return 日志头是否有效
+	 */
+	private boolean readJournal() {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), CHARSET));
+			if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) return false;
+
+			int lineCount = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				readJournalLine(line);
+				lineCount++;
+			}
+			redundantOpCount = lineCount - entries.size();
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			FileCache.closeStream(reader);
+		}
+	}
+
+	private void readJournalLine(String line) {
+		String[] parts = line.split(" ");
+		if (parts.length < 2) return; //忽略被截断的行
+		String op = parts[0];
+		String key = parts[1];
+		try {
+			if (PUT.equals(op) && parts.length >= 6) {
+				putEntry(key, Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+						Integer.parseInt(parts[4]), Long.parseLong(parts[5]),
+						parts.length >= 7 ? Long.parseLong(parts[6]) : 0,
+						parts.length >= 8 ? Integer.parseInt(parts[7]) : 0);
+			} else if (PUT.equals(op) && parts.length >= 4) {
+				putEntry(key, Long.parseLong(parts[2]), Long.parseLong(parts[3]), -1, 0, 0, 0);
+			} else if (READ.equals(op) && parts.length >= 3) {
+				Entry entry = entries.get(key);
+				if (entry != null) entry.lastAccess = Long.parseLong(parts[2]);
+			} else if (REMOVE.equals(op)) {
+				removeEntry(key);
+			}
+		} catch (NumberFormatException e) {
+			//忽略被截断的行
+		}
+	}
+
+	/**
+	 * 没有可用日志时，按文件时间扫描一次缓存目录 (包括两级分散目录) 建立索引
+	 */
+	private void scanDirectory() {
+		List<File> fileList = new ArrayList<File>();
+		collectFiles(dir, 0, fileList);
+
+		final long[] times = new long[fileList.size()];
+		for (int i = 0; i < times.length; i++) {
+			times[i] = fileList.get(i).lastModified();
+		}
+		List<Integer> order = new ArrayList<Integer>(times.length);
+		for (int i = 0; i < times.length; i++) order.add(i);
+		Collections.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer lhs, Integer rhs) {
+				long l = times[lhs], r = times[rhs];
+				return l < r ? -1 : (l == r ? 0 : 1);
+			}
+
+		});
+
+		for (Integer i : order) {
+			File f = fileList.get(i);
+			putEntry(f.getName(), f.length(), times[i], -1, 0, 0, 0);
+		}
+	}
+
+	private static void collectFiles(File dir, int depth, List<File> fileList) {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		for (File f : files) {
+			if (f.isFile()) {
+				if (f.getName().endsWith(TEMP_SUFFIX)) {
+					if (depth != 0) f.delete(); //异常退出时遗留的临时文件
+				} else if (depth != 0 || !isIndexFile(f.getName())) {
+					fileList.add(f);
+				}
+			} else if (depth < 2 && f.getName().length() == 2) {
+				collectFiles(f, depth + 1, fileList);
+			}
+		}
+	}
+
+	/**
+	 * 以当前索引内容重写日志文件
+	 */
+	private void rebuildJournal() {
+		closeJournal();
+		Writer writer = null;
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFileTmp), CHARSET));
+			writer.write(MAGIC);
+			writer.write('\n');
+			writer.write(VERSION);
+			writer.write('\n');
+			for (Entry entry : entries.values()) {
+				writer.write(putRecord(entry));
+				writer.write('\n');
+			}
+			writer.close();
+			writer = null;
+			if (!journalFileTmp.renameTo(journalFile)) {
+				journalFile.delete();
+				journalFileTmp.renameTo(journalFile);
+			}
+			redundantOpCount = 0;
+			touched.clear(); //访问顺序已随条目顺序写入
+			openJournalWriter();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			FileCache.closeStream(writer);
+		}
+	}
+
+	private void appendJournal(String line, boolean flush) {
+		if (journalWriter == null) return;
+		try {
+			journalWriter.write(line);
+			journalWriter.write('\n');
+			if (flush && batchDepth == 0) journalWriter.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		if (redundantOpCount >= REBUILD_THRESHOLD && redundantOpCount >= entries.size()) {
+			rebuildJournal();
+		}
+	}
+
+	private static String putRecord(Entry entry) {
+		String record = PUT + ' ' + entry.key + ' ' + entry.length + ' ' + entry.lastAccess;
+		if (entry.isPacked() || entry.expire != 0 || entry.codec != 0) record += " " + entry.segment + ' ' + entry.offset;
+		if (entry.expire != 0 || entry.codec != 0) record += " " + entry.expire;
+		if (entry.codec != 0) record += " " + entry.codec;
+		return record;
+	}
+
+	/**
+	 * 添加或替换条目
+	 * @return 被替换条目的副本，不存在时返回 null
+	 */
+	private Entry putEntry(String key, long length, long lastAccess, int segment, long offset, long expire, int codec) {
+		Entry entry = entries.get(key);
+		Entry previous = null;
+		touched.remove(key);
+		if (entry == null) {
+			entry = new Entry(key, length, lastAccess);
+			entries.put(key, entry);
+			lookup.put(key, entry);
+		} else {
+			previous = new Entry(entry);
+			totalSize -= entry.length;
+			entry.length = length;
+			entry.lastAccess = lastAccess;
+		}
+		entry.segment = segment;
+		entry.offset = offset;
+		entry.expire = expire;
+		entry.codec = codec;
+		if (expire != 0) expiries.offer(new Expiry(expire, key));
+		totalSize += length;
+		return previous;
+	}
+
+	private Entry removeEntry(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			lookup.remove(key);
+			touched.remove(key);
+			totalSize -= entry.length;
+		}
+		return entry;
+	}
+
+	/**
+	 * 记录写入的缓存文件
+	 * @param key 缓存文件名
+	 * @param length 文件长度
+	 * @return 被替换条目的副本，不存在时返回 null
+	 */
+	synchronized Entry put(String key, long length) {
+		return put(key, length, -1, 0, 0, 0);
+	}
+
+	/**
+	 * 记录缓存内容
+	 * @param key 缓存文件名
+	 * @param length 内容长度
+	 * @param segment 打包存储时的段号，独立文件为 -1
+	 * @param offset 段文件中的偏移
+	 * @param expire 过期时间，0 为永不过期
+	 * @param codec 压缩内容的编码器编号，未压缩为 0
+	 * @return 被替换条目的副本，不存在时返回 null
+	 */
+	synchronized Entry put(String key, long length, int segment, long offset, long expire, int codec) {
+		Entry previous = putEntry(key, length, System.currentTimeMillis(), segment, offset, expire, codec);
+		if (previous != null) redundantOpCount++;
+		appendJournal(putRecord(entries.get(key)), true);
+		return previous;
+	}
+
+	/**
+	 * 将打包存储的内容移动到新的位置 (不改变访问顺序)
+	 * @return 条目仍位于原位置并已被移动时返回 true
+	 */
+	synchronized boolean movePacked(String key, int segment, long offset, int newSegment, long newOffset) {
+		Entry entry = lookup.get(key);
+		if (entry == null || entry.segment != segment || entry.offset != offset) return false;
+		entry.segment = newSegment;
+		entry.offset = newOffset;
+		redundantOpCount++;
+		appendJournal(putRecord(entry), false);
+		return true;
+	}
+
+	/**
+	 * 取得条目的副本 (不改变访问顺序)
+	 * @param key 缓存文件名
+	 * @return 不存在时返回 null
+	 */
+	synchronized Entry get(String key) {
+		Entry entry = lookup.get(key);
+		return entry == null ? null : new Entry(entry);
+	}
+
+	/**
+	 * 取得条目内容的编码器编号 (不改变访问顺序)
+	 * @param key 缓存文件名
+	 * @return 未压缩或不存在时返回 0
+	 */
+	synchronized int getCodec(String key) {
+		Entry entry = lookup.get(key);
+		return entry == null ? 0 : entry.codec;
+	}
+
+	/**
+	 * 记录一次访问，并将条目移至最近使用的位置。
+	 * <br>只修改内存中的访问顺序，由 {@link #checkpoint()} 统一写入日志。
+	 * @param key 缓存文件名
+	 * @return 条目是否存在
+	 */
+	synchronized boolean touch(String key) {
+		if (entries.get(key) == null) return false;
+		touched.put(key, Boolean.TRUE);
+		return true;
+	}
+
+	/**
+	 * 将上次检查点后的访问顺序写入日志。访问时间取检查点的时间 (近似值)，
+	 * 回放时按记录顺序恢复最近使用的位置。
+	 */
+	synchronized void checkpoint() {
+		if (touched.isEmpty()) return;
+		String[] keys = touched.keySet().toArray(new String[touched.size()]);
+		touched.clear();
+		long now = System.currentTimeMillis();
+		for (String key : keys) {
+			Entry entry = lookup.get(key);
+			if (entry == null) continue;
+			entry.lastAccess = now;
+			redundantOpCount++;
+			appendJournal(READ + ' ' + entry.key + ' ' + now, false);
+		}
+		if (journalWriter == null) return;
+		try {
+			journalWriter.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * 移除条目
+	 * @param key 缓存文件名
+	 * @return 被移除的条目，不存在时返回 null
+	 */
+	synchronized Entry remove(String key) {
+		Entry entry = removeEntry(key);
+		if (entry != null) {
+			redundantOpCount += 2;
+			appendJournal(REMOVE + ' ' + key, true);
+		}
+		return entry;
+	}
+
+	synchronized boolean contains(String key) {
+		return lookup.containsKey(key);
+	}
+
+	/**
+	 * 判断条目是否已过期
+	 * @param key 缓存文件名
+	 * @param now 当前时间
+	 * @return
+	 */
+	synchronized boolean isExpired(String key, long now) {
+		Entry entry = lookup.get(key);
+		return entry != null && entry.expire != 0 && entry.expire <= now;
+	}
+
+	/**
+	 * 一次查出存在且未过期的条目
+	 * @param keys 缓存文件名
+	 * @param now 当前时间
+	 * @return 存在且未过期的缓存文件名
+	 */
+	synchronized Set<String> getLive(Collection<String> keys, long now) {
+		Set<String> live = new HashSet<String>();
+		for (String key : keys) {
+			Entry entry = lookup.get(key);
+			if (entry != null && (entry.expire == 0 || entry.expire > now)) live.add(key);
+		}
+		return live;
+	}
+
+	/**
+	 * 移除已过期的条目
+	 * @param now 当前时间
+	 * @param max 最多移除的数量
+	 * @return 被移除的条目
+	 */
+	synchronized List<Entry> pollExpired(long now, int max) {
+		List<Entry> expired = new ArrayList<Entry>();
+		while (expired.size() < max) {
+			Expiry head = expiries.peek();
+			if (head == null || head.time > now) break;
+			expiries.poll();
+			Entry entry = lookup.get(head.key);
+			if (entry == null || entry.expire != head.time) continue; //已被替换或删除
+			removeEntry(head.key);
+			redundantOpCount += 2;
+			expired.add(entry);
+		}
+		for (int i = 0, n = expired.size(); i < n; i++) {
+			appendJournal(REMOVE + ' ' + expired.get(i).key, i == n - 1);
+		}
+		return expired;
+	}
+
+	/**
+	 * 返回最早的过期时间 (可能属于已被替换或删除的条目)
+	 * @return 没有会过期的条目时返回 0
+	 */
+	synchronized long getNextExpireTime() {
+		Expiry head = expiries.peek();
+		return head == null ? 0 : head.time;
+	}
+
+	/**
+	 * 返回位于指定段文件中的条目副本
+	 * @param segment 段号
+	 * @return
+	 */
+	synchronized List<Entry> getPackedEntries(int segment) {
+		List<Entry> list = new ArrayList<Entry>();
+		for (Entry entry : lookup.values()) {
+			if (entry.segment == segment) list.add(new Entry(entry));
+		}
+		return list;
+	}
+
+	/**
+	 * 返回各段文件中被引用的数据长度
+	 * @return
+	 */
+	synchronized Map<Integer, Long> getPackedSizes() {
+		Map<Integer, Long> sizes = new HashMap<Integer, Long>();
+		for (Entry entry : lookup.values()) {
+			if (!entry.isPacked()) continue;
+			Long size = sizes.get(entry.segment);
+			sizes.put(entry.segment, (size == null ? 0 : size) + entry.length);
+		}
+		return sizes;
+	}
+
+	/**
+	 * 移除位于已不存在的段文件中的条目
+	 * @param pack 段文件存储
+	 */
+	synchronized void removeMissingPacked(FilePackStore pack) {
+		List<String> missing = new ArrayList<String>();
+		for (Entry entry : lookup.values()) {
+			if (entry.isPacked() && !pack.exists(entry.segment)) missing.add(entry.key);
+		}
+		for (String key : missing) remove(key);
+	}
+
+	/**
+	 * 判断索引中是否有旧版本的键名 (长度与当前键名不同)
+	 * @param keyLength 当前键名的长度
+	 * @return
+	 */
+	synchronized boolean hasLegacyKeys(int keyLength) {
+		for (String key : entries.keySet()) {
+			if (key.length() != keyLength) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 按最久未使用的顺序一次性移除条目，直至总大小和数量都不超过限制。
+	 * (只修改索引，由调用者在锁外删除对应的文件)
+	 * @param maxBytes 最大总大小，小于 0 时不限制
+	 * @param maxCount 最大数量，小于 0 时不限制
+	 * @return 被移除的条目
+	 */
+	synchronized List<Entry> evict(long maxBytes, int maxCount) {
+		List<Entry> evicted = new ArrayList<Entry>();
+		long size = totalSize;
+		int count = entries.size();
+		Iterator<Entry> iter = entries.values().iterator();
+		while (iter.hasNext() && ((maxBytes >= 0 && size > maxBytes) || (maxCount >= 0 && count > maxCount))) {
+			Entry entry = iter.next();
+			iter.remove();
+			lookup.remove(entry.key);
+			size -= entry.length;
+			count--;
+			evicted.add(entry);
+		}
+		if (evicted.isEmpty()) return evicted;
+
+		totalSize = size;
+		redundantOpCount += evicted.size() * 2;
+		for (int i = 0, n = evicted.size(); i < n; i++) {
+			touched.remove(evicted.get(i).key);
+			appendJournal(REMOVE + ' ' + evicted.get(i).key, i == n - 1);
+		}
+		return evicted;
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	synchronized long getTotalSize() {
+		return totalSize;
+	}
+
+	/**
+	 * 清空索引并重写日志
+	 */
+	synchronized void clear() {
+		entries.clear();
+		lookup.clear();
+		expiries.clear();
+		totalSize = 0;
+		rebuildJournal();
+	}
+
+	/**
+	 * 开始批量修改，{@link #endBatch()} 前的记录只写入缓冲
+	 */
+	synchronized void beginBatch() {
+		batchDepth++;
+	}
+
+	/**
+	 * 结束批量修改，将期间的记录一次写入磁盘
+	 */
+	synchronized void endBatch() {
+		if (batchDepth == 0 || --batchDepth > 0 || journalWriter == null) return;
+		try {
+			journalWriter.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * 写入检查点，并将缓冲中的日志写入磁盘
+	 */
+	synchronized void flush() {
+		checkpoint();
+		if (journalWriter == null) return;
+		try {
+			journalWriter.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * 将日志写入并同步到磁盘
+	 */
+	synchronized void sync() {
+		checkpoint();
+		if (journalWriter == null) return;
+		try {
+			journalWriter.flush();
+			journalOut.getFD().sync();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	synchronized void close() {
+		checkpoint();
+		closeJournal();
+	}
+
+	private void closeJournal() {
+		if (journalWriter == null) return;
+		FileCache.closeStream(journalWriter);
+		journalWriter = null;
+		journalOut = null;
+	}
+
+}
@@ -0,0 +1,257 @@
+package com.sunteorum.kiku.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 小文件打包存储
+ * <p>将较小的缓存内容依次追加到较大的段文件中，免去为每个缓存单独创建文件的开销。
+ * 内容的位置 (段号, 偏移, 长度) 由 {@link FileCacheIndex} 记录；
+ * 本类只负责段文件的追加、读取以及有效数据量的统计，段中的无效数据过多时由 {@link FileCache} 在后台整理。</p>
+ * @author KYO
+ *
+ */
+class FilePackStore {
+	static final String PACK_DIR_NAME = "pack"; //段文件目录名
+	private static final String SEGMENT_PREFIX = "seg-";
+	private static final String SEGMENT_SUFFIX = ".pack";
+	private static final float COMPACT_RATIO = 0.5f; //有效数据低于该比例时整理段文件
+
+	/**
+	 * 内容在段文件中的位置
+	 */
+	static final class Location {
+		final int segment;
+		final long offset;
+
+		Location(int segment, long offset) {
+			this.segment = segment;
+			this.offset = offset;
+		}
+	}
+
+	private static final class Segment {
+		final int id;
+		final File file;
+		long size; //段文件长度
+		long liveSize; //仍被索引引用的数据长度
+		RandomAccessFile reader;
+
+		Segment(int id, File file) {
+			this.id = id;
+			this.file = file;
+		}
+	}
+
+	private final File dir;
+	private final long segmentSize;
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+	private Segment active;
+	private FileOutputStream activeOut;
+
+	FilePackStore(File dir, long segmentSize) {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * 打开段文件目录，删除索引中没有引用的段文件
+	 * @param liveSizes 索引中各段的有效数据长度
+	 */
+	synchronized void open(Map<Integer, Long> liveSizes) {
+		closeFiles();
+		segments.clear();
+		active = null;
+		if (!dir.exists()) dir.mkdirs();
+
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		for (File f : files) {
+			int id = parseSegmentId(f.getName());
+			Long live = liveSizes.get(id);
+			if (id < 0 || live == null) {
+				f.delete();
+				continue;
+			}
+			Segment segment = new Segment(id, f);
+			segment.size = f.length();
+			segment.liveSize = live;
+			segments.put(id, segment);
+		}
+	}
+
+	private static int parseSegmentId(String name) {
+		if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) return -1;
+		try {
+			return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * 判断段文件是否存在
+	 * @param segment 段号
+	 * @return
+	 */
+	synchronized boolean exists(int segment) {
+		return segments.containsKey(segment);
+	}
+
+	/**
+	 * 追加内容到当前段文件 (写满后新建段文件)
+	 * @param data 内容
+	 * @return 内容的位置
+	 * @throws IOException
+	 */
+	synchronized Location append(byte[] data) throws IOException {
+		if (active == null || active.size >= segmentSize) {
+			FileCache.closeStream(activeOut);
+			activeOut = null;
+			int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+			active = new Segment(id, new File(dir, SEGMENT_PREFIX + id + SEGMENT_SUFFIX));
+			segments.put(id, active);
+		}
+		if (activeOut == null) {
+			if (!dir.exists()) dir.mkdirs();
+			activeOut = new FileOutputStream(active.file, true);
+		}
+
+		long offset = active.size;
+		activeOut.write(data);
+		active.size += data.length;
+		active.liveSize += data.length;
+		return new Location(active.id, offset);
+	}
+
+	/**
+	 * 读取内容
+	 * @param segment 段号
+	 * @param offset 偏移
+	 * @param length 长度
+	 * @return
+	 * @throws IOException 段文件已被整理删除时
+	 */
+	byte[] read(int segment, long offset, int length) throws IOException {
+		FileChannel channel = getChannel(segment);
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0)
+				throw new IOException("pack segment truncated: " + segment);
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * 以只读内存映射的方式取得内容
+	 * @param segment 段号
+	 * @param offset 偏移
+	 * @param length 长度
+	 * @return
+	 * @throws IOException 段文件已被整理删除时
+	 */
+	MappedByteBuffer map(int segment, long offset, int length) throws IOException {
+		return getChannel(segment).map(FileChannel.MapMode.READ_ONLY, offset, length);
+	}
+
+	private synchronized FileChannel getChannel(int id) throws IOException {
+		Segment segment = segments.get(id);
+		if (segment == null) throw new IOException("pack segment not found: " + id);
+		if (segment.reader == null) segment.reader = new RandomAccessFile(segment.file, "r");
+		return segment.reader.getChannel();
+	}
+
+	/**
+	 * 标记内容已无效 (被删除、覆盖或移动)
+	 * @param segment 段号
+	 * @param length 长度
+	 * @return 该段是否需要整理
+	 */
+	synchronized boolean release(int segment, long length) {
+		Segment s = segments.get(segment);
+		if (s == null) return false;
+		s.liveSize -= length;
+		return needsCompaction(s);
+	}
+
+	private boolean needsCompaction(Segment s) {
+		return s != active && s.liveSize < s.size * COMPACT_RATIO;
+	}
+
+	/**
+	 * 返回需要整理的段号
+	 * @return
+	 */
+	synchronized List<Integer> getCompactionCandidates() {
+		List<Integer> candidates = new ArrayList<Integer>();
+		for (Segment s : segments.values()) {
+			if (needsCompaction(s)) candidates.add(s.id);
+		}
+		return candidates;
+	}
+
+	/**
+	 * 删除段文件 (有效内容已被移出后调用)
+	 * @param segment 段号
+	 */
+	synchronized void delete(int segment) {
+		Segment s = segments.remove(segment);
+		if (s == null) return;
+		if (s == active) {
+			FileCache.closeStream(activeOut);
+			activeOut = null;
+			active = null;
+		}
+		FileCache.closeStream(s.reader);
+		s.file.delete();
+	}
+
+	/**
+	 * 将当前段文件同步到磁盘
+	 */
+	synchronized void sync() {
+		if (activeOut == null) return;
+		try {
+			activeOut.getFD().sync();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * 删除所有段文件
+	 */
+	synchronized void clear() {
+		closeFiles();
+		Iterator<Segment> iter = segments.values().iterator();
+		while (iter.hasNext()) {
+			iter.next().file.delete();
+			iter.remove();
+		}
+		active = null;
+	}
+
+	synchronized void close() {
+		closeFiles();
+	}
+
+	private void closeFiles() {
+		FileCache.closeStream(activeOut);
+		activeOut = null;
+		for (Segment s : segments.values()) {
+			FileCache.closeStream(s.reader);
+			s.reader = null;
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+package com.sunteorum.kiku.cache;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LZF 编码器
+ * <p>只查找 8 KB 以内的重复内容，压缩率低于 Deflate，但压缩和还原都很快，适合读取频繁的文本内容。</p>
+ * <p>格式：控制字节小于 32 时其后为 (控制字节 + 1) 个原样字节；否则高 3 位为匹配长度 - 2 (为 7 时再加下一字节)，
+ * 低 5 位与下一字节组成回溯距离 - 1。</p>
+ * @author KYO
+ *
+ */
+public class LzfCodec implements CacheCodec {
+	public static final int ID = 1;
+	
+	private static final int HASH_BITS = 14;
+	private static final int MAX_LITERAL = 32; //连续原样字节的最大数量
+	private static final int MAX_OFFSET = 1 << 13; //最大回溯距离
+	private static final int MAX_MATCH = (1 << 8) + (1 << 3); //最大匹配长度
+	
+	private static final ThreadLocal<int[]> sHashTable = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1 << HASH_BITS];
+		}
+	};
+	
+	@Override
+	public int getId() {
+		return ID;
+	}
+	
+	@Override
+	public byte[] encode(byte[] data, int offset, int length) {
+		int[] table = sHashTable.get();
+		Arrays.fill(table, -1);
+		byte[] out = new byte[length + length / MAX_LITERAL + 16];
+		int end = offset + length;
+		int ip = offset;
+		int op = 1; //第一个原样字节段的控制字节位置为 0
+		int literalPos = 0;
+		int literals = 0;
+		
+		while (ip < end - 2) {
+			int hash = (((data[ip] & 0xff) << 16 | (data[ip + 1] & 0xff) << 8 | (data[ip + 2] & 0xff)) * -1640531535) >>> (32 - HASH_BITS);
+			int ref = table[hash];
+			table[hash] = ip;
+			int distance = ip - ref - 1;
+			if (ref >= 0 && distance < MAX_OFFSET
+					&& data[ref] == data[ip] && data[ref + 1] == data[ip + 1] && data[ref + 2] == data[ip + 2]) {
+				int maxLength = Math.min(MAX_MATCH, end - ip);
+				int len = 3;
+				while (len < maxLength && data[ref + len] == data[ip + len]) len++;
+				
+				if (literals > 0) out[literalPos] = (byte) (literals - 1);
+				else op--; //没有原样字节，去掉预留的控制字节
+				int code = len - 2;
+				if (code < 7) {
+					out[op++] = (byte) ((code << 5) | (distance >> 8));
+				} else {
+					out[op++] = (byte) ((7 << 5) | (distance >> 8));
+					out[op++] = (byte) (code - 7);
+				}
+				out[op++] = (byte) distance;
+				ip += len;
+				literals = 0;
+				literalPos = op++;
+			} else {
+				out[op++] = data[ip++];
+				if (++literals == MAX_LITERAL) {
+					out[literalPos] = (byte) (MAX_LITERAL - 1);
+					literals = 0;
+					literalPos = op++;
+				}
+			}
+		}
+		while (ip < end) {
+			out[op++] = data[ip++];
+			if (++literals == MAX_LITERAL) {
+				out[literalPos] = (byte) (MAX_LITERAL - 1);
+				literals = 0;
+				literalPos = op++;
+			}
+		}
+		if (literals > 0) out[literalPos] = (byte) (literals - 1);
+		else op--;
+		
+		return Arrays.copyOf(out, op);
+	}
+	
+	@Override
+	public byte[] decode(byte[] data, int offset, int length, int originalLength) throws IOException {
+		byte[] out = new byte[originalLength];
+		int end = offset + length;
+		int ip = offset;
+		int op = 0;
+		try {
+			while (ip < end) {
+				int ctrl = data[ip++] & 0xff;
+				if (ctrl < MAX_LITERAL) {
+					int run = ctrl + 1;
+					System.arraycopy(data, ip, out, op, run);
+					ip += run;
+					op += run;
+				} else {
+					int len = ctrl >> 5;
+					if (len == 7) len += data[ip++] & 0xff;
+					len += 2;
+					int ref = op - ((ctrl & 0x1f) << 8) - (data[ip++] & 0xff) - 1;
+					if (ref < 0) throw new IOException("lzf data corrupted");
+					for (int i = 0; i < len; i++) out[op++] = out[ref++]; //允许重叠
+				}
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("lzf data corrupted");
+		}
+		if (op != originalLength) throw new IOException("lzf data truncated");
+		return out;
+	}
+	
+}
@@ -0,0 +1,179 @@
+package com.sunteorum.kiku.cache;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 正在写入的流式缓存
+ * <p>{@link FileCache} 写入输入流时先写入临时文件，同一个键的读取者可以通过 {@link #openStream()}
+ * 取得跟随写入进度的输入流，不必等待整个流写入完成。写入成功后临时文件才被替换为缓存文件；
+ * 写入失败时正在等待的读取者会收到 {@link IOException}。</p>
+ * @author KYO
+ *
+ */
+class StreamingWrite {
+	static final int BUFFER_SIZE = 1024 * 64; //拷贝缓冲大小
+	private static final int MAX_POOLED_BUFFERS = 4; //缓冲池最多保留的数量
+	private static final ConcurrentLinkedQueue<ByteBuffer> sBufferPool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private final File tmp;
+	private long written = 0; //已写入临时文件的长度
+	private boolean finished = false;
+	private boolean failed = false;
+
+	StreamingWrite(File tmp) {
+		this.tmp = tmp;
+	}
+
+	/**
+	 * 从缓冲池取得拷贝缓冲
+	 * @return
+	 */
+	static ByteBuffer acquireBuffer() {
+		ByteBuffer buffer = sBufferPool.poll();
+		if (buffer == null) return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * 归还拷贝缓冲
+	 * @param buffer
+	 */
+	static void releaseBuffer(ByteBuffer buffer) {
+		if (sBufferPool.size() < MAX_POOLED_BUFFERS) sBufferPool.offer(buffer);
+	}
+
+	/**
+	 * 将输入通道的内容全部写入临时文件，并随写入进度通知读取者。
+	 * 输入为文件通道时使用 {@link FileChannel#transferFrom}，否则使用缓冲池中的缓冲拷贝。
+	 * @param src 输入通道
+	 * @param out 临时文件的通道
+	 * @throws IOException
+	 */
+	void transfer(ReadableByteChannel src, FileChannel out) throws IOException {
+		if (src instanceof FileChannel) {
+			FileChannel in = (FileChannel) src;
+			long remaining = in.size() - in.position();
+			while (remaining > 0) {
+				long n = out.transferFrom(in, written, Math.min(remaining, BUFFER_SIZE));
+				if (n <= 0) break;
+				remaining -= n;
+				publish(n);
+			}
+			return;
+		}
+
+		ByteBuffer buffer = acquireBuffer();
+		try {
+			int n;
+			while ((n = src.read(buffer)) >= 0) {
+				if (n == 0 && buffer.hasRemaining()) continue;
+				buffer.flip();
+				int len = buffer.remaining();
+				while (buffer.hasRemaining()) out.write(buffer);
+				buffer.clear();
+				publish(len);
+			}
+		} finally {
+			releaseBuffer(buffer);
+		}
+	}
+
+	private synchronized void publish(long n) {
+		if (n == 0) return;
+		written += n;
+		notifyAll();
+	}
+
+	/**
+	 * 结束写入并唤醒等待的读取者
+	 * @param success 是否已写入并替换为缓存文件
+	 */
+	synchronized void finish(boolean success) {
+		finished = true;
+		failed = !success;
+		notifyAll();
+	}
+
+	/**
+	 * 打开跟随写入进度的输入流 (使用完毕后由调用者关闭)
+	 * @return 写入已结束时返回 null，此时应直接读取缓存文件
+	 */
+	synchronized InputStream openStream() {
+		if (finished) return null;
+		try {
+			return new FollowingInputStream(new RandomAccessFile(tmp, "r"));
+		} catch (FileNotFoundException e) {
+			return null; //临时文件已被替换为缓存文件
+		}
+	}
+
+	/**
+	 * 等待直至可以读取指定位置的内容
+	 * @param position 读取位置
+	 * @return 可读取的长度，已读完时返回 -1
+	 * @throws IOException 写入失败时
+	 */
+	private synchronized long await(long position) throws IOException {
+		while (position >= written && !finished) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+		if (failed) throw new IOException("stream write failed: " + tmp.getName());
+		return position < written ? written - position : -1;
+	}
+
+	/**
+	 * 跟随写入进度读取临时文件的输入流
+	 */
+	private final class FollowingInputStream extends InputStream {
+		private final RandomAccessFile file;
+		private long position = 0;
+
+		FollowingInputStream(RandomAccessFile file) {
+			this.file = file;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			long available = await(position);
+			if (available < 0) return -1;
+			int n = file.read(b, off, (int) Math.min(len, available));
+			if (n > 0) position += n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			synchronized (StreamingWrite.this) {
+				return (int) Math.min(Math.max(written - position, 0), Integer.MAX_VALUE);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			file.close();
+		}
+	}
+
+}
@@ -0,0 +1,545 @@
+package com.sunteorum.kiku.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+/**
+ * 分级图像缓存
+ * <p>由内存缓存 ({@link BitmapCache})、磁盘缓存 ({@link FileCache}) 和加载器组成：读取时依次查找内存和磁盘，
+ * 磁盘命中的图像解码后放入内存；两级都不存在时通过加载器取得原始数据，先保存到磁盘再解码 (直接写入)，
+ * 或先解码放入内存、由磁盘缓存的延迟写入队列保存 (延迟写入)。因超出内存限制被淘汰的图像若磁盘中没有，
+ * 则压缩后转存到磁盘，而不是直接丢弃，因此内存未命中时大多可以从磁盘取得，不必重新下载。
+ * 图像由后台线程压缩，等待压缩的图像过多时不再转存。
+ * <br>内存缓存设置了复用池时，应通过 {@link #acquire(String)} 和 {@link #release(Bitmap)} 使用图像，
+ * 通过 {@link #get(String)} 取得的图像不会被复用。</p>
+ * @author KYO
+ *
+ */
+public class TieredCache implements Cacheable<Bitmap> {
+
+	/**
+	 * 原始数据加载器，在两级缓存中都没有图像时调用
+	 */
+	public interface Loader {
+		/**
+		 * 加载图像的原始数据
+		 * @param key
+		 * @return {@link File}、{@link InputStream} (由缓存关闭)、byte[] 或 {@link Bitmap}，不存在时返回 null
+		 * @throws Exception 加载失败时
+		 */
+		public Object load(String key) throws Exception;
+	}
+
+	private static final int BITMAP_QUEUE_SIZE = 8; //等待压缩写入磁盘的图像数量上限
+
+	private final BitmapCache memory;
+	private final FileCache disk;
+	private volatile Loader loader; //为 null 时按本地路径或网址读取
+	private final BitmapCache.Loader diskLoader; //从磁盘读取，磁盘中没有时通过加载器加载
+	private final ThreadPoolExecutor bitmapWriter; //压缩图像并写入磁盘的线程，空闲时结束
+	//以下由 writing 同步：等待写入磁盘的图像，以及正在写入的键 (同一个键可能同时在多个线程中写入)
+	private final Map<String, Bitmap> writing = new HashMap<String, Bitmap>();
+	private final List<String> running = new ArrayList<String>();
+
+	private final AtomicInteger memoryHits = new AtomicInteger();
+	private final AtomicInteger diskHits = new AtomicInteger();
+	private final AtomicInteger loadCount = new AtomicInteger();
+	private final AtomicInteger demoteCount = new AtomicInteger();
+
+	/**
+	 * 构造方法，使用默认的内存缓存和磁盘缓存
+	 * @param context
+	 */
+	public TieredCache(Context context) {
+		this(new BitmapCache(), new FileCache(context));
+	}
+
+	/**
+	 * 构造方法。将设置内存缓存的淘汰通知 ({@link BitmapCache#setEvictionListener(BitmapCache.EvictionListener)})，
+	 * 两个缓存不应再由其他 TieredCache 使用。
+	 * @param memory 内存缓存
+	 * @param disk 磁盘缓存
+	 */
+	public TieredCache(BitmapCache memory, FileCache disk) {
+		if (memory == null || disk == null) throw new NullPointerException("memory == null || disk == null");
+		this.memory = memory;
+		this.disk = disk;
+		bitmapWriter = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(BITMAP_QUEUE_SIZE), new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "TieredCache-writer");
+						t.setDaemon(true);
+						return t;
+					}
+
+				});
+		bitmapWriter.allowCoreThreadTimeOut(true);
+		diskLoader = new BitmapCache.Loader() {
+
+			@Override
+			public Bitmap load(String key) throws Exception {
+				Bitmap bitmap = decodeOrRemove(key, TieredCache.this.disk.get(key));
+				if (bitmap != null) {
+					diskHits.incrementAndGet();
+					return bitmap;
+				}
+				loadCount.incrementAndGet();
+				return store(key, fetch(key));
+			}
+
+		};
+		memory.setEvictionListener(new BitmapCache.EvictionListener() {
+
+			@Override
+			public void onEvicted(String key, Bitmap bitmap) {
+				demote(key, bitmap);
+			}
+
+		});
+	}
+
+	public BitmapCache getMemoryCache() {
+		return memory;
+	}
+
+	public FileCache getDiskCache() {
+		return disk;
+	}
+
+	/**
+	 * 设置原始数据加载器
+	 * @param loader 为 null 时将键作为本地路径或网址读取
+	 */
+	public void setLoader(Loader loader) {
+		this.loader = loader;
+	}
+
+	public Loader getLoader() {
+		return loader;
+	}
+
+	/**
+	 * 设置磁盘缓存的延迟写入 ({@link FileCache#setWriteBehind(int, FileCache.SyncMode)})。直接写入 (默认) 时
+	 * 先保存原始数据再从磁盘解码；延迟写入时先在内存中解码并返回，原始数据加入磁盘缓存的写入队列
+	 * (数据在写入前保留在队列中，队列满时加载线程将等待)。
+	 * @param capacity 队列容量，0 为关闭延迟写入
+	 * @param syncMode 磁盘同步策略
+	 */
+	public void setWriteBehind(int capacity, FileCache.SyncMode syncMode) {
+		disk.setWriteBehind(capacity, syncMode);
+	}
+
+	public boolean isWriteBehind() {
+		return disk.isWriteBehind();
+	}
+
+	@Override
+	public boolean contains(String key) {
+		return memory.contains(key) || disk.contains(key);
+	}
+
+	/**
+	 * 取得图像，依次查找内存和磁盘，都不存在时通过加载器加载。
+	 * 磁盘读取和加载都通过 {@link BitmapCache#get(String, BitmapCache.Loader)} 进行，同一个键同时只会解码或加载一次。
+	 * @param key
+	 * @return 不存在或加载失败时返回 null
+	 */
+	@Override
+	public Bitmap get(String key) {
+		if (key == null) return null;
+		Bitmap bitmap = memory.get(key);
+		if (bitmap != null) {
+			memoryHits.incrementAndGet();
+			return bitmap;
+		}
+
+		try {
+			return memory.get(key, diskLoader);
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * 取得图像并标记为使用中，查找和加载的方式与 {@link #get(String)} 相同。内存缓存设置了复用池时，
+	 * 由此加载的图像在被淘汰并结束使用后可以放入复用池。
+	 * @param key
+	 * @return 图像，使用完毕后必须调用 {@link #release(Bitmap)}；不存在或加载失败时返回 null
+	 */
+	public Bitmap acquire(String key) {
+		if (key == null) return null;
+		Bitmap bitmap = memory.acquire(key);
+		if (bitmap != null) {
+			memoryHits.incrementAndGet();
+			return bitmap;
+		}
+
+		try {
+			return memory.acquire(key, diskLoader);
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * 结束使用通过 {@link #acquire(String)} 取得的图像
+	 * @param bitmap
+	 */
+	public void release(Bitmap bitmap) {
+		memory.release(bitmap);
+	}
+
+	/**
+	 * 解码磁盘中的文件。无法解码时文件已损坏，删除该键，否则重新加载的数据因键已存在而无法写入磁盘。
+	 * @param key
+	 * @param file 可为 null
+	 * @return 不存在或无法解码时返回 null
+	 */
+	private Bitmap decodeOrRemove(String key, File file) {
+		if (file == null) return null;
+		Bitmap bitmap = decode(file);
+		if (bitmap == null) disk.remove(key);
+		return bitmap;
+	}
+
+	/**
+	 * 按内存缓存的解码选项和复用池解码
+	 */
+	private Bitmap decode(File file) {
+		if (file == null) return null;
+		return BitmapCache.decodeBitmapFromFile(file, Integer.MAX_VALUE, Integer.MAX_VALUE, memory.getBitmapPool(),
+				memory.getDecodeOptions());
+	}
+
+	private Bitmap decode(byte[] data) {
+		return BitmapCache.decodeBitmapFromStream(new ByteArrayInputStream(data), Integer.MAX_VALUE, Integer.MAX_VALUE,
+				memory.getBitmapPool(), memory.getDecodeOptions());
+	}
+
+	/**
+	 * 通过加载器取得原始数据，未设置加载器时将键作为本地路径或网址读取
+	 */
+	private Object fetch(String key) throws Exception {
+		Loader loader = this.loader;
+		if (loader != null) return loader.load(key);
+		File f = new File(key);
+		if (f.isFile()) return f;
+		return new URL(key).openStream();
+	}
+
+	/**
+	 * 将原始数据保存到磁盘并解码
+	 * @param key
+	 * @param source
+	 * @return 解码的图像 (尚未放入内存)，数据为空或无法解码时返回 null
+	 */
+	private Bitmap store(final String key, Object source) throws Exception {
+		if (source == null) return null;
+		if (source instanceof Bitmap) {
+			writeBitmap(key, (Bitmap) source, false);
+			return (Bitmap) source;
+		}
+
+		if (!disk.isWriteBehind()) {
+			//直接写入：只读取一次数据，解码的是磁盘中的文件
+			try {
+				disk.put(key, source);
+			} finally {
+				if (source instanceof InputStream) BitmapCache.closeStream((InputStream) source);
+			}
+			File f = disk.get(key);
+			if (f != null) return decodeOrRemove(key, f);
+			//磁盘写入失败
+			if (source instanceof File) return decode((File) source);
+			if (source instanceof byte[]) return decode((byte[]) source);
+			return null;
+		}
+
+		if (source instanceof File) {
+			disk.put(key, source);
+			return decode((File) source);
+		}
+		byte[] data;
+		if (source instanceof byte[]) {
+			data = (byte[]) source;
+		} else if (source instanceof InputStream) {
+			try {
+				data = BitmapCache.readInputStream((InputStream) source);
+			} finally {
+				BitmapCache.closeStream((InputStream) source);
+			}
+		} else {
+			throw new IllegalArgumentException("unsupported source: " + source.getClass().getName());
+		}
+		Bitmap bitmap = decode(data);
+		//byte[] 可以加入延迟写入队列 (输入流会被直接写入)
+		if (bitmap != null) disk.put(key, data);
+		return bitmap;
+	}
+
+	/**
+	 * 内存中被淘汰的图像在磁盘中没有时转存到磁盘。尺寸版本不转存 (磁盘只保存原图)。
+	 */
+	private void demote(String key, Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled() || memory.isVariantKey(key) || disk.contains(key)) return;
+		if (writeBitmap(key, bitmap, true)) demoteCount.incrementAndGet();
+	}
+
+	/**
+	 * 由后台线程压缩图像并写入磁盘，写入完成前图像不会放入复用池。同一个键尚未写入的图像会被后来的图像替换。
+	 * @param key
+	 * @param bitmap
+	 * @param dropIfBusy 等待写入的图像过多时是否放弃写入，否则在当前线程写入
+	 * @return 是否写入或已交给后台线程
+	 */
+	private boolean writeBitmap(final String key, final Bitmap bitmap, boolean dropIfBusy) {
+		memory.retain(bitmap);
+		synchronized (writing) {
+			writing.put(key, bitmap);
+		}
+		Runnable task = new Runnable() {
+
+			@Override
+			public void run() {
+				boolean started = false;
+				try {
+					synchronized (writing) {
+						//已被删除或被后来的图像替换时不再写入
+						if (writing.get(key) == bitmap) {
+							writing.remove(key);
+							running.add(key);
+							started = true;
+						}
+					}
+					//开启延迟写入时等待队列写入完成，此前图像不能复用
+					if (started && !bitmap.isRecycled()) disk.putAsync(key, bitmap).get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					e.printStackTrace();
+				} finally {
+					synchronized (writing) {
+						if (started) running.remove(key);
+						writing.notifyAll();
+					}
+					memory.release(bitmap);
+				}
+			}
+
+		};
+		try {
+			bitmapWriter.execute(task);
+		} catch (RejectedExecutionException e) {
+			if (!dropIfBusy) {
+				task.run();
+				return true;
+			}
+			synchronized (writing) {
+				if (writing.get(key) == bitmap) writing.remove(key);
+			}
+			memory.release(bitmap);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 取消尚未开始写入磁盘的图像，并等待正在写入的完成，之后删除磁盘中的内容不会被写入覆盖
+	 * @param keys 为 null 时为全部
+	 */
+	private void cancelWrites(Collection<String> keys) {
+		synchronized (writing) {
+			if (keys == null) writing.clear();
+			else writing.keySet().removeAll(keys);
+			while (keys == null ? !running.isEmpty() : !Collections.disjoint(running, keys)) {
+				try {
+					writing.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * 添加缓存图像。图像直接放入内存并写入磁盘；文件、路径或网址在磁盘中已有该键时从磁盘解码，
+	 * 否则读取后按加载的数据处理 (保存原始数据，不重新压缩)。
+	 * @param key
+	 * @param value 图像、文件、输入流、byte[]、本地路径或网址
+	 */
+	@Override
+	public void put(String key, Object value) {
+		if (key == null || value == null) return;
+		Bitmap bitmap = null;
+		try {
+			if (value instanceof Bitmap) {
+				bitmap = (Bitmap) value;
+				writeBitmap(key, bitmap, false);
+			} else {
+				if (!(value instanceof InputStream) && !(value instanceof byte[])) bitmap = decodeOrRemove(key, disk.get(key));
+				if (bitmap == null) {
+					if (value instanceof String) {
+						File f = new File((String) value);
+						value = f.isFile() ? f : new URL((String) value).openStream();
+					}
+					bitmap = store(key, value);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		if (bitmap != null) memory.put(key, bitmap);
+	}
+
+	/**
+	 * 删除内存和磁盘中的图像
+	 * @return 内存中的图像，不在内存中时返回 null
+	 */
+	@Override
+	public Bitmap remove(String key) {
+		if (key == null) return null;
+		Bitmap bitmap = memory.remove(key);
+		cancelWrites(Collections.singleton(key));
+		disk.remove(key);
+		return bitmap;
+	}
+
+	/**
+	 * 批量取得图像：先取得内存中的图像，其余的逐个从磁盘取得或加载
+	 */
+	@Override
+	public Map<String, Bitmap> getAll(Collection<String> keys) {
+		Map<String, Bitmap> found = memory.getAll(keys);
+		memoryHits.addAndGet(found.size());
+
+		Map<String, Bitmap> values = new LinkedHashMap<String, Bitmap>();
+		for (String key : keys) {
+			Bitmap bitmap = found.get(key);
+			if (bitmap == null && key != null) bitmap = get(key);
+			if (bitmap != null) values.put(key, bitmap);
+		}
+		return values;
+	}
+
+	@Override
+	public void putAll(Map<String, ?> values) {
+		for (Map.Entry<String, ?> e : values.entrySet()) {
+			put(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * 批量删除内存和磁盘中的图像
+	 * @return 内存中被删除的图像
+	 */
+	@Override
+	public Map<String, Bitmap> removeAll(Collection<String> keys) {
+		Map<String, Bitmap> removed = memory.removeAll(keys);
+		cancelWrites(keys);
+		disk.removeAll(keys);
+		return removed;
+	}
+
+	/**
+	 * 返回磁盘中的图像数量 (内存中的图像通常也在磁盘中)
+	 */
+	@Override
+	public int size() {
+		return disk.size();
+	}
+
+	/**
+	 * 使磁盘中的图像数量不超过指定数量，内存按其自身的限制淘汰
+	 */
+	@Override
+	public void trimToSize(int size) {
+		disk.trimToSize(size);
+	}
+
+	@Override
+	public void clear() {
+		memory.clear();
+		cancelWrites(null);
+		disk.clear();
+	}
+
+	/**
+	 * 等待图像的压缩和磁盘缓存的延迟写入完成，并将其索引写入磁盘
+	 */
+	public void flush() {
+		synchronized (writing) {
+			while (!writing.isEmpty() || !running.isEmpty()) {
+				try {
+					writing.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+		disk.flush();
+	}
+
+	/**
+	 * 返回从内存中取得图像的次数
+	 * @return
+	 */
+	public int getMemoryHits() {
+		return memoryHits.get();
+	}
+
+	/**
+	 * 返回从磁盘中取得图像的次数
+	 * @return
+	 */
+	public int getDiskHits() {
+		return diskHits.get();
+	}
+
+	/**
+	 * 返回通过加载器加载的次数
+	 * @return
+	 */
+	public int getLoadCount() {
+		return loadCount.get();
+	}
+
+	/**
+	 * 返回被淘汰的图像转存到磁盘的次数
+	 * @return
+	 */
+	public int getDemoteCount() {
+		return demoteCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "TieredCache[memoryHits=" + memoryHits + " diskHits=" + diskHits + " loads=" + loadCount
+				+ " demotes=" + demoteCount + "]";
+	}
+
+}
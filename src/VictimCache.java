@@ -0,0 +1,169 @@
+package com.sunteorum.kiku.cache;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 有容量限制的淘汰对象缓存
+ * <p>保存从主缓存中淘汰的对象，再次访问时可以取回而不必重新加载。对象以软引用保存，
+ * 总权重超出限制时丢弃最早放入的对象；被回收的对象通过引用队列及时删除并扣除权重，
+ * 不会在表中留下失效的记录。</p>
+ * @author KYO
+ *
+ * @param <K>
+ * @param <V>
+ */
+class VictimCache<K, V> {
+
+	/**
+	 * 记录被丢弃 (超出总权重或对象已被回收) 时的通知，在持有缓存的锁时调用
+	 * @param <K>
+	 */
+	interface DropListener<K> {
+		void onDropped(K key);
+	}
+
+	private static final class Entry<K, V> extends SoftReference<V> {
+		final K key;
+		final int weight;
+
+		Entry(K key, V value, int weight, ReferenceQueue<? super V> queue) {
+			super(value, queue);
+			this.key = key;
+			this.weight = weight;
+		}
+	}
+
+	private final LinkedHashMap<K, Entry<K, V>> entries = new LinkedHashMap<K, Entry<K, V>>(); //按放入顺序排列
+	private final ReferenceQueue<V> queue = new ReferenceQueue<V>();
+	private final ConcurrentLruCache.Weigher<V> weigher;
+	private long weight = 0; //记录中对象的总权重 (包括尚未从引用队列删除的)
+	private long maxWeight;
+	private final DropListener<K> dropListener;
+
+	/**
+	 * @param maxWeight 最大总权重，为 0 时不保存
+	 * @param weigher 权重计算，为 null 时每个对象的权重为 1
+	 * @param dropListener 记录被丢弃时的通知，可为 null (取出、替换和清空时不通知)
+	 */
+	VictimCache(long maxWeight, ConcurrentLruCache.Weigher<V> weigher, DropListener<K> dropListener) {
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+		this.dropListener = dropListener;
+	}
+
+	/**
+	 * 放入被淘汰的对象，替换同键的对象
+	 * @param key
+	 * @param value
+	 */
+	synchronized void put(K key, V value) {
+		expungeStaleEntries();
+		int w = weigher == null ? 1 : weigher.weigh(value);
+		Entry<K, V> previous = entries.remove(key);
+		if (previous != null) weight -= previous.weight;
+		if (w > maxWeight) {
+			dropped(key);
+			return;
+		}
+		entries.put(key, new Entry<K, V>(key, value, w, queue));
+		weight += w;
+		trimToWeight(maxWeight);
+	}
+
+	/**
+	 * 取出并删除对象 (由调用者放回主缓存)
+	 * @param key
+	 * @return 不存在或已被回收时返回 null
+	 */
+	synchronized V remove(K key) {
+		expungeStaleEntries();
+		Entry<K, V> entry = entries.remove(key);
+		if (entry == null) return null;
+		weight -= entry.weight;
+		return entry.get();
+	}
+
+	synchronized boolean containsKey(K key) {
+		expungeStaleEntries();
+		Entry<K, V> entry = entries.get(key);
+		return entry != null && entry.get() != null;
+	}
+
+	/**
+	 * 清空缓存
+	 * @return 尚未被回收的对象
+	 */
+	synchronized List<V> clear() {
+		List<V> values = new ArrayList<V>(entries.size());
+		for (Entry<K, V> entry : entries.values()) {
+			V value = entry.get();
+			if (value != null) values.add(value);
+		}
+		entries.clear();
+		weight = 0;
+		while (queue.poll() != null) {
+			//记录已清空
+		}
+		return values;
+	}
+
+	/**
+	 * 修改最大总权重，超出时立即丢弃最早放入的对象
+	 * @param maxWeight
+	 */
+	synchronized void setMaxWeight(long maxWeight) {
+		this.maxWeight = maxWeight;
+		expungeStaleEntries();
+		trimToWeight(maxWeight);
+	}
+
+	synchronized long getMaxWeight() {
+		return maxWeight;
+	}
+
+	synchronized long weight() {
+		expungeStaleEntries();
+		return weight;
+	}
+
+	synchronized int size() {
+		expungeStaleEntries();
+		return entries.size();
+	}
+
+	private void trimToWeight(long maxWeight) {
+		Iterator<Entry<K, V>> iter = entries.values().iterator();
+		while (weight > maxWeight && iter.hasNext()) {
+			Entry<K, V> entry = iter.next();
+			iter.remove();
+			weight -= entry.weight;
+			dropped(entry.key);
+		}
+	}
+
+	/**
+	 * 删除对象已被回收的记录
+	 */
+	@SuppressWarnings("unchecked")
+	private void expungeStaleEntries() {
+		Entry<K, V> entry;
+		while ((entry = (Entry<K, V>) queue.poll()) != null) {
+			//同键的记录可能已被替换或删除
+			if (entries.get(entry.key) == entry) {
+				entries.remove(entry.key);
+				weight -= entry.weight;
+				dropped(entry.key);
+			}
+		}
+	}
+
+	private void dropped(K key) {
+		if (dropListener != null) dropListener.onDropped(key);
+	}
+
+}
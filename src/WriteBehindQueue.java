@@ -0,0 +1,319 @@
+package com.sunteorum.kiku.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 文件缓存的延迟写入队列
+ * <p>{@link FileCache} 开启延迟写入后，写入请求先进入本队列并立即返回，由写入线程分批写入磁盘。
+ * 同一个键在写入前的多次请求会被合并，只写入最后一次的内容。队列已满时请求的线程将等待。</p>
+ * @author KYO
+ *
+ */
+class WriteBehindQueue {
+	private static final int BATCH_SIZE = 32; //每批最多写入的数量
+
+	/**
+	 * 写入结果
+	 */
+	static final class WriteFuture implements Future<Boolean> {
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private volatile boolean result;
+
+		void set(boolean result) {
+			this.result = result;
+			latch.countDown();
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return latch.getCount() == 0;
+		}
+
+		@Override
+		public Boolean get() throws InterruptedException {
+			latch.await();
+			return result;
+		}
+
+		@Override
+		public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+			if (!latch.await(timeout, unit)) throw new TimeoutException();
+			return result;
+		}
+	}
+
+	/**
+	 * 等待写入的请求
+	 */
+	static final class PendingWrite {
+		final String name; //缓存文件名
+		final String key; //请求的键
+		final Object value;
+		final long expire; //过期时间，0 为永不过期
+		final List<WriteFuture> futures = new ArrayList<WriteFuture>(1);
+		volatile boolean cancelled = false; //已被删除或清空，写入线程尚未写入时不再写入
+
+		PendingWrite(String name, String key, Object value, long expire) {
+			this.name = name;
+			this.key = key;
+			this.value = value;
+			this.expire = expire;
+		}
+
+		void complete(boolean result) {
+			for (WriteFuture future : futures) future.set(result);
+		}
+	}
+
+	private final FileCache cache;
+	private final int capacity;
+	private final FileCache.SyncMode syncMode;
+	private final LinkedHashMap<String, PendingWrite> pending = new LinkedHashMap<String, PendingWrite>();
+	private final Map<String, PendingWrite> writing = new HashMap<String, PendingWrite>();
+	private Thread writer;
+	private boolean closed = false;
+
+	WriteBehindQueue(FileCache cache, int capacity, FileCache.SyncMode syncMode) {
+		this.cache = cache;
+		this.capacity = capacity;
+		this.syncMode = syncMode;
+	}
+
+	/**
+	 * 加入写入请求，与尚未写入的同键请求合并
+	 * @param name 缓存文件名
+	 * @param key 请求的键
+	 * @param value 缓存内容
+	 * @param expire 过期时间，0 为永不过期
+	 * @return 写入结果，队列已关闭时返回 null
+	 * @throws InterruptedException 等待队列空间时被中断
+	 */
+	synchronized WriteFuture enqueue(String name, String key, Object value, long expire) throws InterruptedException {
+		while (!closed && pending.size() >= capacity && !pending.containsKey(name)) {
+			wait();
+		}
+		if (closed) return null;
+
+		PendingWrite write = new PendingWrite(name, key, value, expire);
+		PendingWrite previous = pending.remove(name);
+		if (previous != null) write.futures.addAll(previous.futures);
+		WriteFuture future = new WriteFuture();
+		write.futures.add(future);
+		pending.put(name, write);
+
+		if (writer == null) startWriter();
+		notifyAll();
+		return future;
+	}
+
+	private void startWriter() {
+		writer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+				drain();
+			}
+
+		}, "FileCache-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * 返回尚未写入的缓存内容
+	 * @param name 缓存文件名
+	 * @return 不存在时返回 null
+	 */
+	synchronized Object peek(String name) {
+		PendingWrite write = pending.get(name);
+		if (write == null) write = writing.get(name);
+		return write == null ? null : write.value;
+	}
+
+	/**
+	 * 取出尚未写入的请求，由调用者立即写入并调用 {@link PendingWrite#complete(boolean)}；
+	 * 写入线程正在写入该键时等待其完成。
+	 * @param name 缓存文件名
+	 * @return 需要调用者写入的请求，没有时返回 null
+	 */
+	PendingWrite claim(String name) {
+		WriteFuture future = null;
+		synchronized (this) {
+			PendingWrite write = pending.remove(name);
+			if (write != null) {
+				notifyAll();
+				return write;
+			}
+			write = writing.get(name);
+			if (write != null && !write.futures.isEmpty()) future = write.futures.get(0);
+		}
+		if (future != null) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 丢弃尚未写入的请求。写入线程已取出该请求时取消它，正在写入时等待写入完成，
+	 * 之后调用者删除的缓存不会再被写入线程重新创建。
+	 * @param name 缓存文件名
+	 */
+	void discard(String name) {
+		WriteFuture future = null;
+		synchronized (this) {
+			PendingWrite write = pending.remove(name);
+			if (write != null) {
+				write.complete(false);
+				notifyAll();
+			}
+			write = writing.get(name);
+			if (write != null) {
+				write.cancelled = true;
+				if (Thread.currentThread() != writer && !write.futures.isEmpty()) future = write.futures.get(0);
+			}
+		}
+		if (future != null) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * 丢弃所有尚未写入的请求，取消写入线程已取出的请求并等待正在进行的写入完成
+	 */
+	synchronized void clear() {
+		for (PendingWrite write : pending.values()) write.complete(false);
+		pending.clear();
+		for (PendingWrite write : writing.values()) write.cancelled = true;
+		notifyAll();
+		while (!writing.isEmpty() && Thread.currentThread() != writer) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 等待已加入的请求全部写入
+	 * @throws InterruptedException
+	 */
+	synchronized void flush() throws InterruptedException {
+		while (!pending.isEmpty() || !writing.isEmpty()) {
+			wait();
+		}
+	}
+
+	/**
+	 * 写入剩余的请求后停止写入线程
+	 */
+	void close() {
+		try {
+			flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			closed = true;
+			clear();
+		}
+	}
+
+	private void drain() {
+		List<PendingWrite> batch = new ArrayList<PendingWrite>(BATCH_SIZE);
+		try {
+			while (true) {
+				synchronized (this) {
+					while (!closed && pending.isEmpty()) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (closed) return;
+
+					Iterator<PendingWrite> iter = pending.values().iterator();
+					while (iter.hasNext() && batch.size() < BATCH_SIZE) {
+						PendingWrite write = iter.next();
+						iter.remove();
+						writing.put(write.name, write);
+						batch.add(write);
+					}
+					notifyAll();
+				}
+
+				boolean[] results = new boolean[batch.size()];
+				int started = 0; //已开始写入的数量
+				try {
+					for (int i = 0; i < results.length; i++) {
+						PendingWrite write = batch.get(i);
+						started++;
+						if (write.cancelled) continue;
+						try {
+							results[i] = cache.write(write.key, write.value, write.expire, syncMode == FileCache.SyncMode.EACH);
+						} catch (RuntimeException e) {
+							e.printStackTrace();
+						} catch (OutOfMemoryError e) {
+							e.printStackTrace();
+						}
+					}
+					if (syncMode != FileCache.SyncMode.NONE) cache.sync(batch, syncMode == FileCache.SyncMode.BATCH);
+				} finally {
+					//写入线程异常结束时也要完成这一批，否则 flush 和 close 会一直等待；尚未开始写入的请求放回队列
+					synchronized (this) {
+						for (int i = 0; i < results.length; i++) {
+							PendingWrite write = batch.get(i);
+							writing.remove(write.name);
+							if (i >= started && !write.cancelled && !closed && !pending.containsKey(write.name)) {
+								pending.put(write.name, write);
+							} else {
+								write.complete(results[i]);
+							}
+						}
+						notifyAll();
+					}
+					batch.clear();
+				}
+			}
+		} finally {
+			synchronized (this) {
+				if (writer == Thread.currentThread()) {
+					writer = null;
+					//异常结束时由新的线程写入剩余的请求
+					if (!closed && !pending.isEmpty()) startWriter();
+				}
+			}
+		}
+	}
+
+}